@@ -0,0 +1,28 @@
+package com.handler;
+
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link MessageQueueMini} 使用的时钟。
+ * 源码里用的是 SystemClock.uptimeMillis()，这里换成纳秒精度的单调时钟，并且可以替换：
+ * 默认是 {@link SystemClockMini}，测试时可以用 {@link ManualClockMini} 手动拨动时间，不需要真的sleep。
+ * <p>
+ * 时钟必须是单调的，并且返回值大于0（when==0 留给插队的消息）。
+ * 阻塞等待也交给时钟来做，这样手动时钟才能在时间被拨动时唤醒等待中的looper。
+ */
+public interface ClockMini {
+
+    //当前时间，单位纳秒
+    long uptimeNanos();
+
+    //阻塞当前线程最多nanos纳秒，可以被 LockSupport.unpark 提前唤醒，也允许无故返回
+    default void parkNanos(Object blocker, long nanos) {
+        LockSupport.parkNanos(blocker, nanos);
+    }
+
+    //一直阻塞当前线程，直到被 LockSupport.unpark 唤醒，也允许无故返回
+    default void park(Object blocker) {
+        LockSupport.park(blocker);
+    }
+}
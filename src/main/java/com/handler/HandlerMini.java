@@ -4,6 +4,13 @@ package com.handler;
 import org.jetbrains.annotations.NotNull;
 
 import java.lang.reflect.Modifier;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Handler 允许您发送和处理与线程的MessageQueue关联的Message和 Runnable 对象。
@@ -34,6 +41,14 @@ public class HandlerMini {
         public boolean handleMessage(MessageMini msg);
     }
 
+    //合并发送时，队列里已经有相同的消息怎么办
+    public enum CoalescePolicy {
+        //丢掉新消息，已有的消息不变
+        DROP_NEW,
+        //把新消息的arg1、arg2、obj和槽位里的数据写到已有的消息上，已有的消息还在原来的位置
+        REPLACE_PAYLOAD
+    }
+
     /**
      * Subclasses must implement this to receive messages.
      */
@@ -78,15 +93,14 @@ public class HandlerMini {
         }
         mQueue = mLooperMini.mQueueMini;
         mCallback = callback;
+        mAsynchronous = false;
     }
 
     /**
      * Use the provided queue instead of the default one.
      */
     public HandlerMini(LooperMini looperMini) {
-        mLooperMini = looperMini;
-        mQueue = looperMini.mQueueMini;
-        mCallback = null;
+        this(looperMini, null);
     }
 
     /**
@@ -94,9 +108,36 @@ public class HandlerMini {
      * interface in which to handle messages.
      */
     public HandlerMini(LooperMini looperMini, Callback callback) {
+        this(looperMini, callback, false);
+    }
+
+    //async为true时，这个handler发出去的所有消息都是异步消息，不受同步屏障的限制，参见 MessageMini#setAsynchronous(boolean)
+    public HandlerMini(LooperMini looperMini, Callback callback, boolean async) {
         mLooperMini = looperMini;
         mQueue = looperMini.mQueueMini;
         mCallback = callback;
+        mAsynchronous = async;
+    }
+
+    //创建一个发送异步消息的handler
+    public static HandlerMini createAsync(LooperMini looperMini) {
+        return new HandlerMini(looperMini, null, true);
+    }
+
+    public static HandlerMini createAsync(LooperMini looperMini, Callback callback) {
+        return new HandlerMini(looperMini, callback, true);
+    }
+
+    //这个handler发出的消息默认用什么优先级，单独设置过优先级的消息不受影响。一般在创建之后、发消息之前设置
+    public void setPriority(int priority) {
+        if (priority < MessageMini.PRIORITY_INTERACTIVE || priority > MessageMini.PRIORITY_BACKGROUND) {
+            throw new IllegalArgumentException("Unknown priority: " + priority);
+        }
+        mPriority = priority;
+    }
+
+    public int getPriority() {
+        return mPriority;
     }
 
 
@@ -126,6 +167,7 @@ public class HandlerMini {
         return sendMessageDelayed(getPostMessage(r), 0);
     }
 
+    //uptimeMillis 是looper时钟上的毫秒，参见 sendMessageAtTime()
     public final boolean postAtTime(Runnable r, long uptimeMillis) {
         return sendMessageAtTime(getPostMessage(r), uptimeMillis);
     }
@@ -138,6 +180,10 @@ public class HandlerMini {
         return sendMessageDelayed(getPostMessage(r), delayMillis);
     }
 
+    public final boolean postDelayed(Runnable r, long delay, TimeUnit unit) {
+        return sendMessageDelayed(getPostMessage(r), delay, unit);
+    }
+
     /**
      * Posts a message to an object that implements Runnable.
      * Causes the Runnable r to executed on the next iteration through the
@@ -177,18 +223,33 @@ public class HandlerMini {
     }
 
     public final boolean sendMessageDelayed(MessageMini msg, long delayMillis) {
-        if (delayMillis < 0) {
-            delayMillis = 0;
-        }
-        return sendMessageAtTime(msg, System.currentTimeMillis() + delayMillis);
+        return sendMessageDelayed(msg, delayMillis, TimeUnit.MILLISECONDS);
     }
 
+    //同上，延迟可以精确到纳秒；发送时间按消息队列的单调时钟计算，不受系统改时间影响
+    public final boolean sendMessageDelayed(MessageMini msg, long delay, TimeUnit unit) {
+        return sendMessageAtTimeNanos(msg, uptimeAfter(mQueue.mClock, delay, unit));
+    }
+
+    /**
+     * 在指定的时间点发送消息。
+     * 注意和源码不同：uptimeMillis 不是 SystemClock.uptimeMillis()，而是这个handler的looper所用时钟
+     * ({@link LooperMini#getClock()}) 上的毫秒，一般这样算：
+     *     handler.sendMessageAtTime(msg, TimeUnit.NANOSECONDS.toMillis(handler.getLooper().getClock().uptimeNanos()) + 1000);
+     * 默认时钟是 {@link SystemClockMini}，这时和 SystemClockMini.uptimeMillis() 是同一个基准；looper用了别的时钟(比如测试用的
+     * {@link ManualClockMini})时，要按那个时钟来算。postAtTime() 也一样。
+     */
     public boolean sendMessageAtTime(MessageMini msg, long uptimeMillis) {
+        return sendMessageAtTimeNanos(msg, TimeUnit.MILLISECONDS.toNanos(uptimeMillis));
+    }
+
+    //uptimeNanos 是looper时钟上的纳秒
+    public boolean sendMessageAtTimeNanos(MessageMini msg, long uptimeNanos) {
         boolean sent = false;
         MessageQueueMini queue = mQueue;
         if (queue != null) {
-            msg.target = this;
-            sent = queue.enqueueMessage(msg, uptimeMillis);
+            prepareMessage(msg);
+            sent = queue.enqueueMessage(msg, uptimeNanos);
         } else {
             RuntimeException e = new RuntimeException(
                     this + " sendMessageAtTime() called with no mQueue");
@@ -197,6 +258,58 @@ public class HandlerMini {
         return sent;
     }
 
+    //发送之前把target、异步和优先级填上。消息已经在队列里时要先拒绝，不能先改了它的异步标记和优先级：
+    //队列按这两样决定它在哪个存储里，改了之后再移除、分发都会去错误的存储里找
+    private void prepareMessage(MessageMini msg) {
+        if (msg.isInUse()) {
+            throw new RuntimeException(msg + " This message is already in use.");
+        }
+        msg.target = this;
+        if (mAsynchronous) {
+            msg.setAsynchronous(true);
+        }
+        if (mPriority != MessageMini.PRIORITY_NORMAL && msg.getPriority() == MessageMini.PRIORITY_NORMAL) {
+            msg.setPriority(mPriority);
+        }
+    }
+
+    //现在往后delay的时间点，延迟为负数时按0算；延迟太大时饱和到Long.MAX_VALUE(永远不会到期)，而不是溢出成负数排到最前面
+    private static long uptimeAfter(ClockMini clock, long delay, TimeUnit unit) {
+        final long now = clock.uptimeNanos();
+        final long delayNanos = delay < 0 ? 0 : unit.toNanos(delay);
+        return delayNanos > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + delayNanos;
+    }
+
+    //////////////////合并发送///////////////
+    //"状态变了，刷新一下"这类消息，队列里有一条还没处理就够了，不用一次次往队列里塞相同的消息
+    public final boolean sendEmptyMessageCoalesced(int what) {
+        MessageMini msg = MessageMini.obtain();
+        msg.what = what;
+        return sendMessageCoalesced(msg, false, CoalescePolicy.DROP_NEW);
+    }
+
+    /**
+     * 队列里已经有一条还没处理的、同一个what(matchObj为true时obj也相同)的消息时，按policy合并，不再插入新消息；
+     * 否则和sendMessage()一样。合并时msg会被回收，调用之后不要再使用它。查找相同消息的复杂度是O(1)。
+     */
+    public final boolean sendMessageCoalesced(MessageMini msg, boolean matchObj, CoalescePolicy policy) {
+        return sendMessageDelayedCoalesced(msg, 0, matchObj, policy);
+    }
+
+    //同上，没有相同的消息时延迟delayMillis发送；合并到已有的消息时，已有的消息发送时间不变
+    public final boolean sendMessageDelayedCoalesced(MessageMini msg, long delayMillis, boolean matchObj, CoalescePolicy policy) {
+        MessageQueueMini queue = mQueue;
+        if (queue == null) {
+            RuntimeException e = new RuntimeException(
+                    this + " sendMessageDelayedCoalesced() called with no mQueue");
+            System.out.println(e.getMessage());
+            return false;
+        }
+        prepareMessage(msg);
+        long when = uptimeAfter(queue.mClock, delayMillis, TimeUnit.MILLISECONDS);
+        return queue.enqueueCoalescedMessage(msg, when, matchObj, policy == CoalescePolicy.REPLACE_PAYLOAD);
+    }
+
     /**
      * Enqueue a message at the front of the message queue, to be processed on
      * the next iteration of the message loop.  You will receive it in
@@ -213,7 +326,7 @@ public class HandlerMini {
         boolean sent = false;
         MessageQueueMini queue = mQueue;
         if (queue != null) {
-            msg.target = this;
+            prepareMessage(msg);
             sent = queue.enqueueMessage(msg, 0);
         } else {
             System.out.println("sendMessageAtTime() called with no mQueue");
@@ -223,8 +336,21 @@ public class HandlerMini {
 
 
     //////////////////////////从消息队列中移除消息//////////////////////////////////
+    //源码这里传的是removeCallbacksAndMessages(this, what)，把what当成token了，根本删不掉消息
     public final void removeMessages(int what) {
-        mQueue.removeCallbacksAndMessages(this, what);
+        mQueue.removeMessages(this, what, null);
+    }
+
+    public final void removeMessages(int what, Object object) {
+        mQueue.removeMessages(this, what, object);
+    }
+
+    public final void removeCallbacks(Runnable r) {
+        mQueue.removeCallbacksAndMessages(this, null, r);
+    }
+
+    public final void removeCallbacks(Runnable r, Object token) {
+        mQueue.removeCallbacksAndMessages(this, token, r);
     }
 
     public final void removeCallbacksAndMessages(Object token) {
@@ -236,11 +362,139 @@ public class HandlerMini {
      * the message queue.
      */
     public final boolean hasMessages(int what) {
-        return mQueue.hasMessages(this, what, null, false);
+        return mQueue.hasMessages(this, what, null);
     }
 
     public final boolean hasMessages(int what, Object object) {
-        return mQueue.hasMessages(this, what, object, false);
+        return mQueue.hasMessages(this, what, object);
+    }
+
+    public final boolean hasCallbacks(Runnable r) {
+        return mQueue.hasCallbacks(this, r);
+    }
+
+    //////////////////////////跨线程同步调用//////////////////////////////////
+
+    /**
+     * 源码里的runWithScissors：在这个handler的looper线程上执行r，并等它执行完。
+     * 调用方本身就在这个looper线程上时直接执行，不用入队再唤醒；超时返回false，这时r会从队列里移除(已经开始执行的除外)。
+     * looper退出了、或者r还没执行就被丢掉时也返回false。
+     * timeout为0表示一直等。
+     * <b>looper线程之间互相这样等待很容易死锁，只在确实需要同步拿结果的地方用。</b>
+     */
+    public final boolean runWithScissors(Runnable r, long timeout) {
+        if (r == null) {
+            throw new IllegalArgumentException("runnable must not be null");
+        }
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must be non-negative");
+        }
+        try {
+            callWithScissors(() -> {
+                r.run();
+                return null;
+            }, timeout == 0 ? Long.MAX_VALUE : timeout, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException | RejectedExecutionException | CancellationException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * 在这个handler的looper线程上执行task，阻塞等待它的返回值，最多等timeout。
+     * 调用方本身就在这个looper线程上时直接执行(task抛出的异常包装成ExecutionException)。
+     * 超时抛出TimeoutException，并把task从队列里移除(已经开始执行的除外)；looper已经退出、或者有界队列满了发不进去
+     * (FAIL策略，BLOCK策略下等空位时被中断)时抛出RejectedExecutionException，消息里说明是哪一种；
+     * 已经放进队列、还没执行就被丢掉(looper在这期间退出了，队列满了按DROP_NEWEST、DROP_OLDEST策略丢掉)时抛出CancellationException。
+     */
+    public final <T> T callWithScissors(Callable<T> task, long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (LooperMini.myLooper() == mLooperMini) {
+            try {
+                return task.call();
+            } catch (Throwable t) {
+                throw new ExecutionException(t);
+            }
+        }
+        final BlockingCall<T> call = new BlockingCall<>(task);
+        if (!post(call)) {
+            throw rejected();
+        }
+        try {
+            return call.get(timeout, unit);
+        } catch (TimeoutException | InterruptedException e) {
+            //还没开始执行的话就不要再执行了
+            removeCallbacks(call);
+            call.cancel(false);
+            throw e;
+        }
+    }
+
+    //非阻塞的版本：把task放到looper线程上执行，返回它的结果；发不进队列时返回的future直接以RejectedExecutionException失败，
+    //放进队列之后还没执行就被丢掉时future被取消。取消返回的future时，还没开始执行的task会从队列里移除
+    public final <T> CompletableFuture<T> callAsync(Callable<T> task) {
+        final BlockingCall<T> call = new BlockingCall<>(task);
+        if (!post(call)) {
+            call.completeExceptionally(rejected());
+        } else {
+            call.whenComplete((result, e) -> {
+                if (call.isCancelled()) {
+                    removeCallbacks(call);
+                }
+            });
+        }
+        return call;
+    }
+
+    //post()返回false的原因：looper退出了，还是有界队列满了。
+    //DROP_NEWEST策略丢掉的消息post()照样返回true，同步调用在队列里被取消，调用方看到的是取消，不会当成执行成功
+    private RejectedExecutionException rejected() {
+        MessageQueueMini queue = mQueue;
+        if (queue.isQuitting()) {
+            return new RejectedExecutionException(this + " is sending message to a dead thread");
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            return new RejectedExecutionException(this + " was interrupted waiting for room in a full queue");
+        }
+        return new RejectedExecutionException(this + " is sending message to a full queue (capacity "
+                + queue.getCapacity() + ")");
+    }
+
+    //既是放进队列的Runnable，又是调用方等待的结果。
+    //消息还没执行就被丢掉(looper退出、被removeCallbacks()删掉、队列满了按策略丢弃)时，消息队列会取消它，等待方不会一直等下去
+    static final class BlockingCall<T> extends CompletableFuture<T> implements Runnable {
+        private final Callable<T> mTask;
+
+        BlockingCall(Callable<T> task) {
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            if (isDone()) {
+                return;
+            }
+            try {
+                complete(mTask.call());
+            } catch (Throwable t) {
+                completeExceptionally(t);
+            }
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new RuntimeException(t);
     }
 
     // if we can get rid of this method, the handler need not remember its loop
@@ -272,4 +526,6 @@ public class HandlerMini {
     final MessageQueueMini mQueue;
     final LooperMini mLooperMini;
     final Callback mCallback;
+    final boolean mAsynchronous;
+    int mPriority = MessageMini.PRIORITY_NORMAL;
 }
@@ -0,0 +1,82 @@
+package com.handler;
+
+
+/**
+ * 源码里的HandlerThread：一个自带looper的线程，省得每次都手写 prepare()、loop() 这一套(参见 HandlerTest)。
+ * start() 之后用 getLooper() 拿到looper，再用它创建handler：
+ *     HandlerThreadMini thread = new HandlerThreadMini("worker");
+ *     thread.start();
+ *     HandlerMini handler = new HandlerMini(thread.getLooper());
+ */
+public class HandlerThreadMini extends Thread {
+    private final int mPriority;
+    private LooperMini mLooper;
+
+    public HandlerThreadMini(String name) {
+        this(name, Thread.NORM_PRIORITY);
+    }
+
+    public HandlerThreadMini(String name, int priority) {
+        super(name);
+        mPriority = priority;
+    }
+
+    //looper准备好、开始循环之前，在这个线程上回调，子类可以在这里做初始化
+    protected void onLooperPrepared() {
+    }
+
+    @Override
+    public void run() {
+        LooperMini.prepare();
+        synchronized (this) {
+            mLooper = LooperMini.myLooper();
+            notifyAll();
+        }
+        setPriority(mPriority);
+        onLooperPrepared();
+        LooperMini.loop();
+    }
+
+    //返回这个线程的looper，线程已经启动但looper还没准备好时会一直等到它准备好；线程没有启动或者已经结束时返回null
+    public LooperMini getLooper() {
+        if (!isAlive()) {
+            return null;
+        }
+        //只在线程刚启动时等一下，所以这里用synchronized + wait也无妨
+        boolean wasInterrupted = false;
+        synchronized (this) {
+            while (isAlive() && mLooper == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    //继续等，但不能把中断吞掉，返回之前恢复中断标记
+                    wasInterrupted = true;
+                }
+            }
+        }
+        if (wasInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return mLooper;
+    }
+
+    //结束looper的循环，线程也就结束了；还没处理的消息会被丢掉
+    public boolean quit() {
+        LooperMini looper = getLooper();
+        if (looper != null) {
+            looper.quit();
+            return true;
+        }
+        return false;
+    }
+
+    //同quit()，但先把已经到期的消息处理完
+    public boolean quitSafely() {
+        LooperMini looper = getLooper();
+        if (looper != null) {
+            looper.quitSafely();
+            return true;
+        }
+        return false;
+    }
+}
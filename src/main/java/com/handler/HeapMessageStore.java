@@ -0,0 +1,228 @@
+package com.handler;
+
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * 快车道 + 小顶堆 的消息存储，{@link MessageQueueMini} 默认使用它。
+ * <p>
+ * ①快车道：入队时已经到期(when <= now)，或者 when==0 插队的消息，放到一个按顺序排列的链表里，入队O(1)。
+ * 绝大多数 post/sendMessage 都是立即执行的消息，它们按入队先后到达，天然有序，直接接到队尾即可。
+ * ②小顶堆：延迟消息(postDelayed 的超时之类)放到以 (when, seq) 为键的二叉堆里，入队O(log n)。
+ * <p>
+ * 取消息时比较两边的头，谁早取谁。这样即使队列里压着几万个延迟消息，入队也不会再遍历整条链表。
+ * <p>
+ * 快车道是双向链表，堆里的消息记着自己的下标，所以删除一条指定的消息也不需要遍历。
+ */
+public class HeapMessageStore implements MessageStore {
+    private static final int INITIAL_CAPACITY = 16;
+
+    //快车道：按 (when, seq) 有序的双向链表
+    private MessageMini mLaneHead;
+    private MessageMini mLaneTail;
+    private int mLaneSize;
+
+    //延迟消息的小顶堆，mHeap[0] 最早
+    private MessageMini[] mHeap = new MessageMini[INITIAL_CAPACITY];
+    private int mHeapSize;
+
+    @Override
+    public void add(MessageMini msg, long now) {
+        if (msg.when == 0) {
+            //插队的消息直接放到快车道最前面
+            msg.prev = null;
+            msg.next = mLaneHead;
+            if (mLaneHead == null) {
+                mLaneTail = msg;
+            } else {
+                mLaneHead.prev = msg;
+            }
+            mLaneHead = msg;
+            mLaneSize++;
+        } else if (msg.when <= now && (mLaneTail == null || !MessageStore.before(msg, mLaneTail))) {
+            //已经到期，并且接到队尾不会破坏顺序
+            msg.next = null;
+            msg.prev = mLaneTail;
+            if (mLaneTail == null) {
+                mLaneHead = msg;
+            } else {
+                mLaneTail.next = msg;
+            }
+            mLaneTail = msg;
+            mLaneSize++;
+        } else {
+            offerHeap(msg);
+        }
+    }
+
+    @Override
+    public MessageMini peek() {
+        MessageMini lane = mLaneHead;
+        MessageMini heap = mHeapSize > 0 ? mHeap[0] : null;
+        if (lane == null) {
+            return heap;
+        }
+        if (heap == null) {
+            return lane;
+        }
+        return MessageStore.before(heap, lane) ? heap : lane;
+    }
+
+    @Override
+    public MessageMini poll() {
+        MessageMini msg = peek();
+        if (msg == null) {
+            return null;
+        }
+        if (msg == mLaneHead) {
+            unlinkLane(msg);
+        } else {
+            removeHeapAt(0);
+        }
+        return msg;
+    }
+
+    @Override
+    public boolean remove(MessageMini msg) {
+        if (msg.heapIndex >= 0) {
+            if (msg.heapIndex >= mHeapSize || mHeap[msg.heapIndex] != msg) {
+                return false;
+            }
+            removeHeapAt(msg.heapIndex);
+            return true;
+        }
+        if (msg != mLaneHead && msg.prev == null) {
+            return false;
+        }
+        unlinkLane(msg);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return mLaneSize + mHeapSize;
+    }
+
+    @Override
+    public void removeIf(Predicate<MessageMini> filter, Consumer<MessageMini> removed) {
+        //快车道：普通的链表删除
+        MessageMini p = mLaneHead;
+        while (p != null) {
+            MessageMini n = p.next;
+            if (filter.test(p)) {
+                unlinkLane(p);
+                removed.accept(p);
+            }
+            p = n;
+        }
+
+        //堆：先把留下来的消息挤到数组前面，再整体重新建堆
+        int kept = 0;
+        for (int i = 0; i < mHeapSize; i++) {
+            MessageMini m = mHeap[i];
+            if (filter.test(m)) {
+                m.heapIndex = -1;
+                removed.accept(m);
+            } else {
+                m.heapIndex = kept;
+                mHeap[kept++] = m;
+            }
+        }
+        if (kept != mHeapSize) {
+            Arrays.fill(mHeap, kept, mHeapSize, null);
+            mHeapSize = kept;
+            for (int i = (mHeapSize >>> 1) - 1; i >= 0; i--) {
+                siftDown(i, mHeap[i]);
+            }
+        }
+    }
+
+    @Override
+    public void forEach(Consumer<MessageMini> action) {
+        for (MessageMini p = mLaneHead; p != null; p = p.next) {
+            action.accept(p);
+        }
+        for (int i = 0; i < mHeapSize; i++) {
+            action.accept(mHeap[i]);
+        }
+    }
+
+    private void unlinkLane(MessageMini msg) {
+        MessageMini prev = msg.prev;
+        MessageMini next = msg.next;
+        if (prev == null) {
+            mLaneHead = next;
+        } else {
+            prev.next = next;
+        }
+        if (next == null) {
+            mLaneTail = prev;
+        } else {
+            next.prev = prev;
+        }
+        msg.prev = null;
+        msg.next = null;
+        mLaneSize--;
+    }
+
+    //////////////////////////堆操作//////////////////////////////////
+    private void offerHeap(MessageMini msg) {
+        msg.next = null;
+        msg.prev = null;
+        if (mHeapSize == mHeap.length) {
+            mHeap = Arrays.copyOf(mHeap, mHeapSize << 1);
+        }
+        siftUp(mHeapSize++, msg);
+    }
+
+    private void removeHeapAt(int i) {
+        MessageMini removed = mHeap[i];
+        removed.heapIndex = -1;
+        int last = --mHeapSize;
+        MessageMini moved = mHeap[last];
+        mHeap[last] = null;
+        if (i != last) {
+            siftDown(i, moved);
+            if (mHeap[i] == moved) {
+                siftUp(i, moved);
+            }
+        }
+    }
+
+    private void siftUp(int k, MessageMini msg) {
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            MessageMini p = mHeap[parent];
+            if (!MessageStore.before(msg, p)) {
+                break;
+            }
+            mHeap[k] = p;
+            p.heapIndex = k;
+            k = parent;
+        }
+        mHeap[k] = msg;
+        msg.heapIndex = k;
+    }
+
+    private void siftDown(int k, MessageMini msg) {
+        int half = mHeapSize >>> 1;
+        while (k < half) {
+            int child = (k << 1) + 1;
+            MessageMini c = mHeap[child];
+            int right = child + 1;
+            if (right < mHeapSize && MessageStore.before(mHeap[right], c)) {
+                c = mHeap[child = right];
+            }
+            if (!MessageStore.before(c, msg)) {
+                break;
+            }
+            mHeap[k] = c;
+            c.heapIndex = k;
+            k = child;
+        }
+        mHeap[k] = msg;
+        msg.heapIndex = k;
+    }
+}
@@ -0,0 +1,112 @@
+package com.handler;
+
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * 源码里的实现：按时间排序的单向链表。
+ * 入队时从头结点开始遍历找插入位置，复杂度O(n)；取消息只需要拿头结点，复杂度O(1)。
+ * 队列里消息不多的时候，这个实现足够简单，也最省内存。
+ */
+public class LinkedMessageStore implements MessageStore {
+    //单向链表的头结点
+    private MessageMini mMessages;
+    private int mSize;
+
+    @Override
+    public void add(MessageMini msg, long now) {
+        MessageMini p = mMessages;
+        //把新的消息放到头结点的几种情况：
+        //①该链表本来就是空链表
+        //②新消息比现在的头结点要早(when==0 的消息seq为负数，所以一定比头结点早)
+        if (p == null || MessageStore.before(msg, p)) {
+            msg.next = p;
+            mMessages = msg;
+        } else {
+            MessageMini prev = null;
+            //相当于一个时间轴把，按照时间顺序，把新消息插入到对应位置
+            while (p != null && !MessageStore.before(msg, p)) {
+                prev = p;
+                p = p.next;
+            }
+            //插入
+            msg.next = p;
+            prev.next = msg;
+        }
+        mSize++;
+    }
+
+    @Override
+    public MessageMini peek() {
+        return mMessages;
+    }
+
+    @Override
+    public MessageMini poll() {
+        MessageMini msg = mMessages;
+        if (msg != null) {
+            mMessages = msg.next;
+            msg.next = null;
+            mSize--;
+        }
+        return msg;
+    }
+
+    //单向链表只能从头找，复杂度O(n)
+    @Override
+    public boolean remove(MessageMini msg) {
+        MessageMini prev = null;
+        for (MessageMini p = mMessages; p != null; prev = p, p = p.next) {
+            if (p == msg) {
+                if (prev == null) {
+                    mMessages = p.next;
+                } else {
+                    prev.next = p.next;
+                }
+                p.next = null;
+                mSize--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    //这里一个很普通，很经典的链表删除算法
+    @Override
+    public void removeIf(Predicate<MessageMini> filter, Consumer<MessageMini> removed) {
+        MessageMini p = mMessages;
+        // 特殊处理：循环遍历删除头结点
+        while (p != null && filter.test(p)) {
+            MessageMini n = p.next;
+            mMessages = n;
+            p.next = null;
+            mSize--;
+            removed.accept(p);
+            p = n;
+        }
+        while (p != null) {
+            MessageMini n = p.next;
+            if (n != null && filter.test(n)) {
+                p.next = n.next;
+                n.next = null;
+                mSize--;
+                removed.accept(n);
+                continue;
+            }
+            p = n;
+        }
+    }
+
+    @Override
+    public void forEach(Consumer<MessageMini> action) {
+        for (MessageMini p = mMessages; p != null; p = p.next) {
+            action.accept(p);
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.handler;
+
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个looper的运行指标，用 {@link LooperMini#getMetrics()} 获取，可以在任何线程读取。
+ * <p>
+ * ①队列深度：已入队、还没被取出或删除的消息数；
+ * ②调度延迟：消息到期(并且已经入队)到开始分发之间的时间，按2的幂分桶的直方图；
+ * ③每个what的处理耗时：次数、总耗时、最长耗时；
+ * ④慢分发：单条消息处理超过阈值的次数，以及最近一次是谁；另外还能看到当前正在分发的消息已经处理了多久；
+ * ⑤空闲：空闲处理程序(IdleHandler)的耗时，以及looper阻塞等消息的总时间；
+ * ⑥有界队列满了之后，各个策略发生的次数，参见 {@link MessageQueueMini#setCapacity}。
+ * <p>
+ * 除了入队计数(多个生产者，用LongAdder)，其余的计数要么只有looper线程在写，要么持有队列锁才写，所以用lazySet写入，不需要CAS，也不分配内存；
+ * 读到的是一个大致的快照，各个数字之间不保证互相一致。
+ */
+public final class LooperMetricsMini {
+    //调度延迟直方图：第i个桶是 [2^i, 2^(i+1)) 纳秒，0和1纳秒也算在第0个桶里
+    private static final int LATENCY_BUCKETS = 64;
+
+    //按what统计处理耗时的槽位数(2的幂)，每个槽位4个long：键、次数、总耗时、最长耗时
+    //what哈希冲突时最多往后找WHAT_PROBES个槽位，都被占了就记到最后一个"其他"槽位里
+    private static final int WHAT_SLOTS = 64;
+    private static final int WHAT_PROBES = 4;
+    private static final int SLOT_KEY = 0;
+    private static final int SLOT_COUNT = 1;
+    private static final int SLOT_TOTAL = 2;
+    private static final int SLOT_MAX = 3;
+    //槽位的键 = what | USED，0表示空槽位
+    private static final long USED = 1L << 32;
+
+    //mCounters里的下标
+    private static final int DEQUEUED = 0;
+    private static final int DISPATCHED = 1;
+    private static final int DISPATCH_START = 2;
+    private static final int DISPATCH_WHAT = 3;
+    private static final int SLOW_COUNT = 4;
+    private static final int SLOW_LAST_NANOS = 5;
+    private static final int SLOW_LAST_WHAT = 6;
+    private static final int IDLE_HANDLER_RUNS = 7;
+    private static final int IDLE_HANDLER_NANOS = 8;
+    private static final int BLOCKED_NANOS = 9;
+    private static final int REJECTED = 10;
+    private static final int DROPPED_OLDEST = 11;
+    private static final int DROPPED_NEWEST = 12;
+    private static final int PRODUCER_BLOCKS = 13;
+    private static final int PRODUCER_BLOCKED_NANOS = 14;
+    private static final int COUNTERS = 15;
+
+    //遍历每个what的统计结果，不用为每个what分配对象
+    public interface WhatVisitor {
+        void visit(int what, long count, long totalNanos, long maxNanos);
+    }
+
+    private final ClockMini mClock;
+    private final LongAdder mEnqueued = new LongAdder();
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTERS);
+    private final AtomicLongArray mLatency = new AtomicLongArray(LATENCY_BUCKETS);
+    private final AtomicLongArray mWhatSlots = new AtomicLongArray((WHAT_SLOTS + 1) * 4);
+    //正在分发的消息的target，优先记callback(post出去的Runnable)
+    private final AtomicReference<Object> mDispatchTarget = new AtomicReference<>();
+    private final AtomicReference<Object> mLastSlowTarget = new AtomicReference<>();
+    private volatile long mSlowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+    LooperMetricsMini(ClockMini clock) {
+        mClock = clock;
+    }
+
+    //////////////////////////looper和消息队列调用，记录指标///////////////////////////////
+
+    //任何线程：一条消息进了入口
+    void onEnqueued() {
+        mEnqueued.increment();
+    }
+
+    //持有队列锁：n条消息离开了队列(被取出或删除)；放回队列时n为负数
+    void onDequeued(int n) {
+        mCounters.lazySet(DEQUEUED, mCounters.get(DEQUEUED) + n);
+    }
+
+    //looper线程：开始分发msg，now是当前时间
+    void onDispatchStart(MessageMini msg, long now) {
+        final long due = Math.max(msg.when, msg.enqueueTime);
+        final long latency = Math.max(now - due, 0);
+        final int bucket = latency == 0 ? 0 : 63 - Long.numberOfLeadingZeros(latency);
+        mLatency.lazySet(bucket, mLatency.get(bucket) + 1);
+        mDispatchTarget.lazySet(msg.callback != null ? msg.callback : msg.target);
+        mCounters.lazySet(DISPATCH_WHAT, msg.what);
+        mCounters.lazySet(DISPATCH_START, now);
+    }
+
+    //looper线程：msg分发完了
+    void onDispatchEnd(MessageMini msg, long start, long end) {
+        final long duration = end - start;
+        mCounters.lazySet(DISPATCH_START, 0);
+        mCounters.lazySet(DISPATCHED, mCounters.get(DISPATCHED) + 1);
+        recordWhat(msg.what, duration);
+        if (duration >= mSlowThresholdNanos) {
+            mLastSlowTarget.lazySet(mDispatchTarget.get());
+            mCounters.lazySet(SLOW_LAST_WHAT, msg.what);
+            mCounters.lazySet(SLOW_LAST_NANOS, duration);
+            mCounters.lazySet(SLOW_COUNT, mCounters.get(SLOW_COUNT) + 1);
+        }
+        mDispatchTarget.lazySet(null);
+    }
+
+    //looper线程：跑了runs个空闲处理程序，一共花了nanos
+    void onIdleHandlers(int runs, long nanos) {
+        mCounters.lazySet(IDLE_HANDLER_RUNS, mCounters.get(IDLE_HANDLER_RUNS) + runs);
+        mCounters.lazySet(IDLE_HANDLER_NANOS, mCounters.get(IDLE_HANDLER_NANOS) + nanos);
+    }
+
+    //looper线程：阻塞等消息花了nanos
+    void onBlocked(long nanos) {
+        mCounters.lazySet(BLOCKED_NANOS, mCounters.get(BLOCKED_NANOS) + nanos);
+    }
+
+    //持有队列锁：队列满了，各个策略的计数
+    void onRejected() {
+        increment(REJECTED);
+    }
+
+    void onDroppedOldest() {
+        increment(DROPPED_OLDEST);
+    }
+
+    void onDroppedNewest() {
+        increment(DROPPED_NEWEST);
+    }
+
+    void onProducerBlocked(long nanos) {
+        increment(PRODUCER_BLOCKS);
+        mCounters.lazySet(PRODUCER_BLOCKED_NANOS, mCounters.get(PRODUCER_BLOCKED_NANOS) + nanos);
+    }
+
+    private void increment(int counter) {
+        mCounters.lazySet(counter, mCounters.get(counter) + 1);
+    }
+
+    private void recordWhat(int what, long duration) {
+        final long key = USED | (what & 0xffffffffL);
+        int slot = WHAT_SLOTS;
+        int h = what * 0x9E3779B9;
+        for (int i = 0; i < WHAT_PROBES; i++) {
+            int s = ((h >>> 26) + i) & (WHAT_SLOTS - 1);
+            long k = mWhatSlots.get(s * 4 + SLOT_KEY);
+            if (k == key) {
+                slot = s;
+                break;
+            }
+            if (k == 0) {
+                mWhatSlots.lazySet(s * 4 + SLOT_KEY, key);
+                slot = s;
+                break;
+            }
+        }
+        final int base = slot * 4;
+        mWhatSlots.lazySet(base + SLOT_COUNT, mWhatSlots.get(base + SLOT_COUNT) + 1);
+        mWhatSlots.lazySet(base + SLOT_TOTAL, mWhatSlots.get(base + SLOT_TOTAL) + duration);
+        if (duration > mWhatSlots.get(base + SLOT_MAX)) {
+            mWhatSlots.lazySet(base + SLOT_MAX, duration);
+        }
+    }
+
+    //////////////////////////任何线程都可以读///////////////////////////////
+
+    //分发超过这个时间就算慢分发，默认100毫秒
+    public void setSlowDispatchThreshold(long threshold, TimeUnit unit) {
+        mSlowThresholdNanos = unit.toNanos(threshold);
+    }
+
+    //还在队列里(包括还没被looper取走的入口栈)的消息数
+    public long getQueueDepth() {
+        return Math.max(mEnqueued.sum() - mCounters.get(DEQUEUED), 0);
+    }
+
+    public long getEnqueuedCount() {
+        return mEnqueued.sum();
+    }
+
+    public long getDispatchedCount() {
+        return mCounters.get(DISPATCHED);
+    }
+
+    //调度延迟直方图的拷贝，第i个元素是延迟落在 [2^i, 2^(i+1)) 纳秒的消息数
+    public long[] getLatencyHistogram() {
+        long[] result = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            result[i] = mLatency.get(i);
+        }
+        return result;
+    }
+
+    //调度延迟的p分位(0~1)，返回所在桶的上界，单位纳秒；还没有分发过消息时返回0
+    public long getLatencyPercentileNanos(double p) {
+        long[] histogram = getLatencyHistogram();
+        long total = 0;
+        for (long c : histogram) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= rank && histogram[i] > 0) {
+                return i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    //遍历每个what的处理耗时；哈希槽位不够用时，放不下的what会合在一起，用Integer.MIN_VALUE报告
+    public void forEachWhat(WhatVisitor visitor) {
+        for (int s = 0; s <= WHAT_SLOTS; s++) {
+            final int base = s * 4;
+            long count = mWhatSlots.get(base + SLOT_COUNT);
+            if (count == 0) {
+                continue;
+            }
+            int what = s == WHAT_SLOTS ? Integer.MIN_VALUE : (int) mWhatSlots.get(base + SLOT_KEY);
+            visitor.visit(what, count, mWhatSlots.get(base + SLOT_TOTAL), mWhatSlots.get(base + SLOT_MAX));
+        }
+    }
+
+    public long getSlowDispatchCount() {
+        return mCounters.get(SLOW_COUNT);
+    }
+
+    //最近一次慢分发的消息的callback或者target，没有慢分发过时返回null
+    public Object getLastSlowDispatchTarget() {
+        return mLastSlowTarget.get();
+    }
+
+    public int getLastSlowDispatchWhat() {
+        return (int) mCounters.get(SLOW_LAST_WHAT);
+    }
+
+    public long getLastSlowDispatchNanos() {
+        return mCounters.get(SLOW_LAST_NANOS);
+    }
+
+    //当前正在分发的消息已经处理了多久，looper没有在分发消息时返回0。用来发现卡住looper的handler
+    public long getCurrentDispatchNanos() {
+        long start = mCounters.get(DISPATCH_START);
+        return start == 0 ? 0 : Math.max(mClock.uptimeNanos() - start, 0);
+    }
+
+    //当前正在分发的消息的callback或者target，looper没有在分发消息时返回null
+    public Object getCurrentDispatchTarget() {
+        return mDispatchTarget.get();
+    }
+
+    public int getCurrentDispatchWhat() {
+        return (int) mCounters.get(DISPATCH_WHAT);
+    }
+
+    public long getIdleHandlerRuns() {
+        return mCounters.get(IDLE_HANDLER_RUNS);
+    }
+
+    public long getIdleHandlerNanos() {
+        return mCounters.get(IDLE_HANDLER_NANOS);
+    }
+
+    public long getBlockedNanos() {
+        return mCounters.get(BLOCKED_NANOS);
+    }
+
+    //FAIL策略拒绝的次数，以及BLOCK策略下等待时被中断、looper退出而失败的次数
+    public long getRejectedCount() {
+        return mCounters.get(REJECTED);
+    }
+
+    public long getDroppedOldestCount() {
+        return mCounters.get(DROPPED_OLDEST);
+    }
+
+    public long getDroppedNewestCount() {
+        return mCounters.get(DROPPED_NEWEST);
+    }
+
+    //BLOCK策略下生产者被阻塞的次数和总时间
+    public long getProducerBlockCount() {
+        return mCounters.get(PRODUCER_BLOCKS);
+    }
+
+    public long getProducerBlockedNanos() {
+        return mCounters.get(PRODUCER_BLOCKED_NANOS);
+    }
+
+    public void dump(PrintStream out) {
+        out.println(this);
+        forEachWhat((what, count, total, max) -> out.println("    what=" + (what == Integer.MIN_VALUE ? "other" : what)
+                + " count=" + count + " avg=" + total / count + "ns max=" + max + "ns"));
+        Object current = getCurrentDispatchTarget();
+        if (current != null) {
+            out.println("    dispatching " + current + " what=" + getCurrentDispatchWhat()
+                    + " for " + getCurrentDispatchNanos() + "ns");
+        }
+        Object slow = getLastSlowDispatchTarget();
+        if (slow != null) {
+            out.println("    last slow dispatch " + slow + " what=" + getLastSlowDispatchWhat()
+                    + " took " + getLastSlowDispatchNanos() + "ns");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LooperMetricsMini{depth=" + getQueueDepth()
+                + ", dispatched=" + getDispatchedCount()
+                + ", p50=" + getLatencyPercentileNanos(0.5) + "ns"
+                + ", p99=" + getLatencyPercentileNanos(0.99) + "ns"
+                + ", slow=" + getSlowDispatchCount()
+                + ", idleHandlers=" + getIdleHandlerRuns() + "/" + getIdleHandlerNanos() + "ns"
+                + ", blocked=" + getBlockedNanos() + "ns"
+                + ", rejected=" + getRejectedCount()
+                + ", droppedOldest=" + getDroppedOldestCount()
+                + ", droppedNewest=" + getDroppedNewestCount()
+                + ", producerBlocks=" + getProducerBlockCount() + "}";
+    }
+}
@@ -1,5 +1,10 @@
 package com.handler;
 
+import com.utils.VirtualThreads;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * 用于为线程运行消息循环的类。
@@ -28,15 +33,56 @@ public class LooperMini {
 
     final MessageQueueMini mQueueMini;
     volatile boolean mRun;
+    //批量分发：每次从队列里最多取多少条到期的消息，一批最多连续处理多久；默认一次一条，和源码一样
+    private volatile int mMaxBatchSize = 1;
+    private volatile long mMaxTimeSliceNanos = Long.MAX_VALUE;
     Thread mThread;
     private static LooperMini mMainLooperMini = null;
 
     //将当前线程初始化为循环程序。 这使您有机会创建处理程序，然后在实际开始循环之前引用此循环程序。 调用此方法后一定要调用loop() ，并通过调用quit()结束它。
     public static void prepare() {
+        prepare(HeapMessageStore::new, SystemClockMini.INSTANCE);
+    }
+
+    //同prepare()，但可以指定消息队列内部使用的存储结构，比如 LooperMini.prepare(LinkedMessageStore::new)
+    public static void prepare(Supplier<? extends MessageStore> storeFactory) {
+        prepare(storeFactory, SystemClockMini.INSTANCE);
+    }
+
+    //同prepare()，但可以指定消息队列使用的时钟，比如测试时传入 ManualClockMini
+    public static void prepare(ClockMini clock) {
+        prepare(HeapMessageStore::new, clock);
+    }
+
+    public static void prepare(Supplier<? extends MessageStore> storeFactory, ClockMini clock) {
         if (sThreadLocal.get() != null) {
             throw new RuntimeException("Only one Looper may be created per thread");
         }
-        sThreadLocal.set(new LooperMini());
+        sThreadLocal.set(new LooperMini(storeFactory.get(), clock));
+    }
+
+    /**
+     * 新开一个虚拟线程，在上面prepare()并loop()，looper准备好之后返回它，之后用 new HandlerMini(looper) 往里面发消息。
+     * 虚拟线程阻塞在next()里时不占用系统线程，所以可以每个连接开一个looper，开几十万个也没问题。
+     * 运行的JDK不支持虚拟线程时，退化成普通的守护线程。调用quit()结束循环，线程也就结束了。
+     */
+    public static LooperMini startVirtualLooper(String name) {
+        return startVirtualLooper(name, HeapMessageStore::new, SystemClockMini.INSTANCE);
+    }
+
+    public static LooperMini startVirtualLooper(String name, Supplier<? extends MessageStore> storeFactory, ClockMini clock) {
+        CompletableFuture<LooperMini> ready = new CompletableFuture<>();
+        VirtualThreads.start(name, () -> {
+            try {
+                prepare(storeFactory, clock);
+            } catch (Throwable t) {
+                ready.completeExceptionally(t);
+                return;
+            }
+            ready.complete(myLooper());
+            loop();
+        });
+        return ready.join();
     }
 
     /** Initialize the current thread as a looper, marking it as an application's main
@@ -68,23 +114,64 @@ public class LooperMini {
         LooperMini me = myLooper();
         MessageQueueMini queue = me.mQueueMini;
         while (true) {
-            MessageMini msg = queue.next(); // might block
-            if (msg.target == null) {
-                // No target is a magic identifier for the quit message.
+            MessageMini msg = queue.next(me.mMaxBatchSize); // might block
+            if (msg == null) {
+                // No message indicates that the message queue is quitting.
                 return;
             }
-//                me.mLogging.println(
-//                        ">>>>> Dispatching to " + msg.target + " "
-//                                + msg.callback + ": " + msg.what
-//                );
-            msg.target.dispatchMessage(msg);
-//                me.mLogging.println(
-//                        "<<<<< Finished to    " + msg.target + " "
-//                                + msg.callback);
-            msg.recycle();
+            final LooperMetricsMini metrics = queue.mMetrics;
+            final MessageTracerMini tracer = queue.mTracer;
+            final long sliceStart = queue.mClock.uptimeNanos();
+            final long maxTimeSlice = me.mMaxTimeSliceNanos;
+            long dispatchStart = sliceStart;
+            try {
+                do {
+//                    me.mLogging.println(
+//                            ">>>>> Dispatching to " + msg.target + " "
+//                                    + msg.callback + ": " + msg.what
+//                    );
+                    metrics.onDispatchStart(msg, dispatchStart);
+                    msg.target.dispatchMessage(msg);
+                    //上一条的结束时间就是下一条的开始时间，每条消息只读一次时钟
+                    final long dispatchEnd = queue.mClock.uptimeNanos();
+                    metrics.onDispatchEnd(msg, dispatchStart, dispatchEnd);
+//                    me.mLogging.println(
+//                            "<<<<< Finished to    " + msg.target + " "
+//                                    + msg.callback);
+                    if (tracer != null && (msg.flags & MessageMini.FLAG_TRACED) != 0) {
+                        tracer.recycleAndRecord(msg, dispatchStart, dispatchEnd, queue.mClock);
+                    } else {
+                        msg.recycleUnchecked();
+                    }
+                    dispatchStart = dispatchEnd;
+                    //这一批处理太久了，剩下的放回队列，让更早的新消息有机会插进来
+                    if (dispatchEnd - sliceStart >= maxTimeSlice) {
+                        break;
+                    }
+                    //这一批里已经被删掉、或者quit()丢掉的消息，nextInBatch()会跳过
+                } while ((msg = queue.nextInBatch()) != null);
+            } finally {
+                //超时、或者handler抛了异常，没分发的消息放回队列，不会丢，也不会一直占着
+                queue.requeueBatch();
+            }
         }
     }
 
+    /**
+     * 打开批量分发：looper每次加一次锁取出所有已经到期的消息(最多maxBatchSize条)，再连续处理它们，
+     * 突发大量消息时可以省掉每条消息一次的加锁和唤醒开销。
+     * 一批连续处理超过maxTimeSlice后，剩下的消息会放回队列，保证循环的公平性。
+     * 一批里还没分发的消息照样算在队列里：hasMessages()能查到，removeMessages()、quit()能把它们删掉。
+     * maxBatchSize为1时就是源码的行为。可以在任何线程调用，下一批生效。
+     */
+    public void setBatchDispatch(int maxBatchSize, long maxTimeSlice, TimeUnit unit) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1: " + maxBatchSize);
+        }
+        mMaxBatchSize = maxBatchSize;
+        mMaxTimeSliceNanos = unit.toNanos(maxTimeSlice);
+    }
+
     //返回与当前线程关联的 Looper 对象
     public static LooperMini myLooper() {
         return sThreadLocal.get();
@@ -96,16 +183,21 @@ public class LooperMini {
         return myLooper().mQueueMini;
     }
 
-    private LooperMini() {
-        mQueueMini = new MessageQueueMini();
+    private LooperMini(MessageStore store, ClockMini clock) {
+        mQueueMini = new MessageQueueMini(store, clock);
         mRun = true;
         mThread = Thread.currentThread();
     }
 
+    //退出循环，还没处理的消息都丢掉。
+    //源码早期是发一条target为空的消息来退出，现在target为空的消息专门用作同步屏障，退出改成直接给消息队列打标记
     public void quit() {
-        MessageMini msg = MessageMini.obtain();
-        // 注意：通过直接入队到消息队列中，消息会留下一个空目标。这就是我们如何知道这是一个退出消息。
-        mQueueMini.enqueueMessage(msg, 0);
+        mQueueMini.quit(false);
+    }
+
+    //退出循环，但是先把已经到期的消息处理完，只丢掉还没到期的延迟消息
+    public void quitSafely() {
+        mQueueMini.quit(true);
     }
 
 
@@ -117,6 +209,25 @@ public class LooperMini {
         return mQueueMini;
     }
 
+    //消息队列用的时钟，sendMessageAtTime()、postAtTime() 的时间点要按它来算
+    public ClockMini getClock() {
+        return mQueueMini.mClock;
+    }
+
+    //打开(tracer不为null)或者关闭消息追踪，可以在任何线程调用，之后发送的消息生效
+    public void setTracer(MessageTracerMini tracer) {
+        mQueueMini.mTracer = tracer;
+    }
+
+    public MessageTracerMini getTracer() {
+        return mQueueMini.mTracer;
+    }
+
+    //这个looper的运行指标，可以在任何线程读取
+    public LooperMetricsMini getMetrics() {
+        return mQueueMini.mMetrics;
+    }
+
 //    public void dump(Printer pw, String prefix) {
 //        pw.println(prefix + this);
 //        pw.println(prefix + "mRun=" + mRun);
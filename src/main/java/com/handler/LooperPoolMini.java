@@ -0,0 +1,174 @@
+package com.handler;
+
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一组 {@link HandlerThreadMini}，两种用法：
+ * <p>
+ * ①按key分配：同一个key总是落在同一个looper上，所以同一个key的消息还是单线程、按顺序处理的。
+ * 用 {@link #getLooper(Object)} 拿到looper自己创建handler，或者直接 {@link #post(Object, Runnable)}。
+ * <p>
+ * ②不带key的 {@link #post(Runnable)}：任务放进所有looper共享的队列，哪个looper闲着就由哪个looper来取，
+ * 这样零散的任务可以用满所有线程，而不会打乱按key分配的消息的顺序。
+ * <p>
+ * 空闲的looper通过 IdleHandler 把自己登记到空闲集合里，post(Runnable) 时从集合里挑一个唤醒；
+ * 登记之后还会再看一眼共享队列，避免"刚登记完任务就来了，却没人唤醒"。所有looper都在忙时，轮流挑一个looper，
+ * 让它在处理完手头的消息之后顺便取一些共享任务，保证共享任务不会一直饿着。
+ */
+public class LooperPoolMini {
+    //一次最多连续执行多少个共享任务，执行完还有就重新排队，让自己队列里的消息先处理
+    private static final int DRAIN_BATCH = 16;
+
+    private final Worker[] mWorkers;
+    private final ConcurrentLinkedQueue<Runnable> mShared = new ConcurrentLinkedQueue<>();
+    //空闲的looper，后进先出，最近闲下来的looper缓存还是热的
+    private final ConcurrentLinkedDeque<Worker> mIdle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger mNextVictim = new AtomicInteger();
+    //quit()之后不再接收共享任务
+    private volatile boolean mQuitting;
+
+    public LooperPoolMini(String name, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1: " + size);
+        }
+        mWorkers = new Worker[size];
+        for (int i = 0; i < size; i++) {
+            HandlerThreadMini thread = new HandlerThreadMini(name + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            mWorkers[i] = new Worker(thread);
+        }
+    }
+
+    public int size() {
+        return mWorkers.length;
+    }
+
+    //key对应的looper，同一个key总是返回同一个looper
+    public LooperMini getLooper(Object key) {
+        return worker(key).mThread.getLooper();
+    }
+
+    //在key对应的looper上执行r，同一个key的任务按post的顺序执行
+    public boolean post(Object key, Runnable r) {
+        return worker(key).mHandler.post(r);
+    }
+
+    //在任意一个looper上执行r，不保证顺序。和HandlerMini.post()一样，已经quit()了返回false
+    public boolean post(Runnable r) {
+        Objects.requireNonNull(r);
+        if (mQuitting) {
+            return false;
+        }
+        mShared.offer(r);
+        //检查完mQuitting之后quit()可能已经清过共享队列了，r就没人取了。先放再检查，quit()是先置标记再清，两边至少有一边能看到对方。
+        //没能拿回来说明已经被looper取走、或者被quit()丢掉了，和发送成功之后被丢掉一样返回true
+        if (mQuitting) {
+            return !mShared.remove(r);
+        }
+        Worker w = pollIdle();
+        if (w == null) {
+            w = mWorkers[Math.floorMod(mNextVictim.getAndIncrement(), mWorkers.length)];
+        }
+        w.scheduleDrain();
+        return true;
+    }
+
+    //结束所有looper；还没执行的任务会被丢掉，之后post()返回false
+    public void quit() {
+        mQuitting = true;
+        for (Worker w : mWorkers) {
+            w.mThread.quit();
+        }
+        mShared.clear();
+    }
+
+    private Worker worker(Object key) {
+        int h = Objects.hashCode(key);
+        h ^= h >>> 16;
+        return mWorkers[Math.floorMod(h, mWorkers.length)];
+    }
+
+    //从空闲集合里取出一个looper，集合里可能有已经不再空闲的looper，跳过它们
+    private Worker pollIdle() {
+        Worker w;
+        while ((w = mIdle.pollFirst()) != null) {
+            if (w.mIdleFlag.compareAndSet(true, false)) {
+                return w;
+            }
+        }
+        return null;
+    }
+
+    private final class Worker implements MessageQueueMini.IdleHandler, Runnable {
+        final HandlerThreadMini mThread;
+        final HandlerMini mHandler;
+        //是否登记在mIdle里
+        final AtomicBoolean mIdleFlag = new AtomicBoolean();
+        //是否已经给自己发了一条取共享任务的消息，避免重复发送
+        final AtomicBoolean mDrainPending = new AtomicBoolean();
+
+        Worker(HandlerThreadMini thread) {
+            mThread = thread;
+            LooperMini looper = thread.getLooper();
+            mHandler = new HandlerMini(looper);
+            looper.getQueue().addIdleHandler(this);
+            //looper可能已经阻塞在next()里了，来不及回调queueIdle()，刚创建时直接算空闲
+            mIdleFlag.set(true);
+            mIdle.offerFirst(this);
+        }
+
+        void scheduleDrain() {
+            if (mDrainPending.compareAndSet(false, true)) {
+                mHandler.post(this);
+            }
+        }
+
+        //looper要阻塞了：登记为空闲，然后再检查一次共享队列
+        @Override
+        public boolean queueIdle() {
+            if (mDrainPending.get()) {
+                return true;
+            }
+            if (mIdleFlag.compareAndSet(false, true)) {
+                mIdle.offerFirst(this);
+            }
+            if (!mShared.isEmpty() && mIdleFlag.compareAndSet(true, false)) {
+                mIdle.remove(this);
+                scheduleDrain();
+            }
+            return true;
+        }
+
+        //在looper线程上取共享任务来执行
+        @Override
+        public void run() {
+            mDrainPending.set(false);
+            final MessageQueueMini queue = mThread.getLooper().getQueue();
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                Runnable r = mShared.poll();
+                if (r == null) {
+                    return;
+                }
+                try {
+                    r.run();
+                } catch (Throwable t) {
+                    //共享任务出错不能连累这个looper上按key分配的消息
+                    mThread.getUncaughtExceptionHandler().uncaughtException(mThread, t);
+                }
+                //自己队列里有到期的消息就先让它们处理；还没到期的延迟消息不用让
+                if (queue.hasDueMessages()) {
+                    break;
+                }
+            }
+            if (!mShared.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.handler;
+
+
+import com.utils.VirtualThreads;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 把一个looper收到的消息当成 {@link Flow.Publisher} 发布出去，代替 {@link LooperMini#loop()}：
+ *     LooperPublisherMini publisher = LooperPublisherMini.start("ticks", 1024, MessageQueueMini.OverflowPolicy.BLOCK);
+ *     HandlerMini handler = new HandlerMini(publisher.getLooper());
+ *     publisher.subscribe(subscriber);
+ * <p>
+ * ①背压：订阅者没有需求(request(n))时，looper照常取消息、执行Runnable，只是不调用onNext，
+ * 数据消息按顺序压在消息队列里，照样查得到、删得掉，也还算在队列深度里，
+ * 队列满了之后由容量策略(比如BLOCK)反压到生产者，中间不再需要额外的缓冲队列；有了需求再按原来的顺序发出去；
+ * ②批量：一次加锁最多取出需求数(不超过maxBatch)条到期的(或者之前压下的)消息，再逐条调用onNext；
+ * ③结束：looper退出(quit)时调用onComplete，quitSafely()时订阅者还没要的消息丢掉；
+ * 订阅者取消订阅、或者request(n)的n不是正数时，looper也随之退出，队列里剩下的消息丢掉。
+ * <p>
+ * 发给订阅者的信号都在looper线程上依次发出，而且都在onSubscribe返回之后：onNext、request(n)参数不对时的onError，
+ * 还有looper退出时的onComplete(订阅之前looper就已经退出了的话，在subscribe的线程上、onSubscribe返回之后调用)。
+ * 参数里的消息在onNext返回之后会被回收，不要留着它。
+ * post(Runnable)出去的消息不发给订阅者，还是在looper线程上直接执行，不管订阅者有没有需求，
+ * 所以 callWithScissors 之类的调用照常可用。只支持一个订阅者。
+ */
+public final class LooperPublisherMini implements Flow.Publisher<MessageMini> {
+    private static final int DEFAULT_MAX_BATCH = 64;
+
+    private final LooperMini mLooper;
+    private final int mMaxBatch;
+    private final Thread mThread;
+    private final AtomicReference<Flow.Subscriber<? super MessageMini>> mSubscriber = new AtomicReference<>();
+    //onSubscribe已经返回，这之后才能给订阅者发别的信号
+    private volatile boolean mSubscribed;
+    //request(n)的n不是正数时记下来，由looper线程报给订阅者
+    private volatile IllegalArgumentException mRequestError;
+    //订阅者还要多少条消息，Long.MAX_VALUE表示不限
+    private final AtomicLong mDemand = new AtomicLong();
+    private volatile boolean mCancelled;
+    private volatile boolean mTerminated;
+    private final AtomicBoolean mCompleted = new AtomicBoolean();
+
+    private LooperPublisherMini(LooperMini looper, int maxBatch) {
+        mLooper = looper;
+        mMaxBatch = maxBatch;
+        mThread = looper.getThread();
+    }
+
+    //新开一个(虚拟)线程作为looper开始发布消息，队列容量不限
+    public static LooperPublisherMini start(String name) {
+        return start(name, Integer.MAX_VALUE, MessageQueueMini.OverflowPolicy.BLOCK);
+    }
+
+    //同上，订阅者跟不上时，队列里最多积压capacity条消息，再多就按policy处理
+    public static LooperPublisherMini start(String name, int capacity, MessageQueueMini.OverflowPolicy policy) {
+        CompletableFuture<LooperPublisherMini> ready = new CompletableFuture<>();
+        VirtualThreads.start(name, () -> {
+            LooperPublisherMini publisher;
+            try {
+                LooperMini.prepare();
+                LooperMini looper = LooperMini.myLooper();
+                looper.getQueue().setCapacity(capacity, policy);
+                publisher = new LooperPublisherMini(looper, DEFAULT_MAX_BATCH);
+            } catch (Throwable t) {
+                ready.completeExceptionally(t);
+                return;
+            }
+            ready.complete(publisher);
+            publisher.loop();
+        });
+        return ready.join();
+    }
+
+    //往这个looper发消息用的，比如 new HandlerMini(publisher.getLooper())
+    public LooperMini getLooper() {
+        return mLooper;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super MessageMini> subscriber) {
+        Objects.requireNonNull(subscriber);
+        if (!mSubscriber.compareAndSet(null, subscriber)) {
+            //按规范先给一个什么都不做的subscription，再报错
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Only one subscriber is allowed"));
+            return;
+        }
+        subscriber.onSubscribe(new Subscription());
+        mSubscribed = true;
+        //订阅之前looper就已经退出了
+        complete();
+        mLooper.mQueueMini.wakeUp();
+    }
+
+    private final class Subscription implements Flow.Subscription {
+        //可能在任何线程上调用，这里只记下来，再叫醒looper线程去处理
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                if (mRequestError == null) {
+                    mRequestError = new IllegalArgumentException("request must be positive: " + n);
+                }
+            } else {
+                mDemand.getAndAccumulate(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+            }
+            mLooper.mQueueMini.wakeUp();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            mLooper.mQueueMini.wakeUp();
+        }
+    }
+
+    //代替LooperMini.loop()，在looper线程上运行
+    private void loop() {
+        final MessageQueueMini queue = mLooper.mQueueMini;
+        try {
+            while (true) {
+                final IllegalArgumentException error = mRequestError;
+                if (error != null && mSubscribed && !mCancelled) {
+                    mCancelled = true;
+                    mSubscriber.get().onError(error);
+                }
+                if (mCancelled) {
+                    queue.quit(false);
+                    return;
+                }
+                //有需求了，先把之前压下的消息按顺序发出去，和next(batch)一样一次加锁取回一批；
+                //还有压着的，新取出来的数据消息也只能排在后面
+                boolean deferring = true;
+                long dispatchStart = queue.mClock.uptimeNanos();
+                while (hasDemand()) {
+                    MessageMini msg = queue.pollDeferred((int) Math.min(mDemand.get(), mMaxBatch));
+                    if (msg == null) {
+                        deferring = false;
+                        break;
+                    }
+                    try {
+                        do {
+                            dispatchStart = dispatch(queue, msg, dispatchStart);
+                        } while (hasDemand() && (msg = queue.nextInBatch()) != null);
+                    } finally {
+                        queue.requeueBatch();
+                    }
+                }
+                final int batch = hasDemand() ? (int) Math.min(mDemand.get(), mMaxBatch) : 1;
+                MessageMini msg = queue.next(batch); // might block
+                if (msg == null) {
+                    //request(n)、cancel()叫醒的，回去看看有什么变化
+                    if (queue.consumeWakeUp()) {
+                        continue;
+                    }
+                    queue.clearDeferred();
+                    mTerminated = true;
+                    complete();
+                    return;
+                }
+                dispatchStart = queue.mClock.uptimeNanos();
+                try {
+                    do {
+                        if (msg.callback == null && (deferring || !hasDemand())) {
+                            //订阅者暂时不要，先压着，Runnable照常执行
+                            deferring = true;
+                            queue.defer(msg);
+                        } else {
+                            dispatchStart = dispatch(queue, msg, dispatchStart);
+                        }
+                    } while ((msg = queue.nextInBatch()) != null);
+                } finally {
+                    queue.requeueBatch();
+                }
+            }
+        } finally {
+            mTerminated = true;
+        }
+    }
+
+    //onSubscribe已经返回、没有取消订阅、还有需求
+    private boolean hasDemand() {
+        return mSubscribed && !mCancelled && mDemand.get() > 0;
+    }
+
+    //执行Runnable，或者把数据消息发给订阅者，然后回收，返回结束的时间
+    private long dispatch(MessageQueueMini queue, MessageMini msg, long dispatchStart) {
+        final LooperMetricsMini metrics = queue.mMetrics;
+        final MessageTracerMini tracer = queue.mTracer;
+        metrics.onDispatchStart(msg, dispatchStart);
+        if (msg.callback != null) {
+            msg.target.dispatchMessage(msg);
+        } else {
+            if (mDemand.get() != Long.MAX_VALUE) {
+                mDemand.decrementAndGet();
+            }
+            deliver(msg);
+        }
+        final long dispatchEnd = queue.mClock.uptimeNanos();
+        metrics.onDispatchEnd(msg, dispatchStart, dispatchEnd);
+        if (tracer != null && (msg.flags & MessageMini.FLAG_TRACED) != 0) {
+            tracer.recycleAndRecord(msg, dispatchStart, dispatchEnd, queue.mClock);
+        } else {
+            msg.recycleUnchecked();
+        }
+        return dispatchEnd;
+    }
+
+    //looper退出之后和onSubscribe返回之后都会调用，谁后到谁发onComplete，只发一次
+    private void complete() {
+        final Flow.Subscriber<? super MessageMini> s = mSubscriber.get();
+        if (mTerminated && mSubscribed && !mCancelled && mCompleted.compareAndSet(false, true)) {
+            s.onComplete();
+        }
+    }
+
+    private void deliver(MessageMini msg) {
+        try {
+            mSubscriber.get().onNext(msg);
+        } catch (Throwable t) {
+            //onNext不该抛异常，抛了就当作取消订阅
+            mCancelled = true;
+            mThread.getUncaughtExceptionHandler().uncaughtException(mThread, t);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.handler;
+
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 手动拨动的时钟，给测试用。
+ * 时间只有在调用 {@link #advance} 的时候才会前进，looper等待延迟消息时不会真的睡眠，
+ * 而是一直阻塞到时间被拨过它等待的时间点，这样大量依赖延迟消息的测试可以全速跑完。
+ * <pre>
+ *     ManualClockMini clock = new ManualClockMini();
+ *     LooperMini.prepare(clock);
+ *     ...
+ *     handler.sendEmptyMessageDelayed(1, 10_000);
+ *     clock.advance(10, TimeUnit.SECONDS); // 消息马上被处理
+ * </pre>
+ */
+public class ManualClockMini implements ClockMini {
+    private final AtomicLong mNow;
+    //正在等待时间前进的线程
+    private final Set<Thread> mWaiters = ConcurrentHashMap.newKeySet();
+
+    //从1纳秒开始，0留给插队的消息
+    public ManualClockMini() {
+        this(1);
+    }
+
+    public ManualClockMini(long startNanos) {
+        if (startNanos <= 0) {
+            throw new IllegalArgumentException("startNanos must be positive: " + startNanos);
+        }
+        mNow = new AtomicLong(startNanos);
+    }
+
+    @Override
+    public long uptimeNanos() {
+        return mNow.get();
+    }
+
+    //把时间往前拨，并唤醒所有等待中的线程，让它们重新检查自己的消息是否到期
+    public void advance(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("Time can't go backwards: " + duration);
+        }
+        mNow.addAndGet(unit.toNanos(duration));
+        for (Thread waiter : mWaiters) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    @Override
+    public void parkNanos(Object blocker, long nanos) {
+        final long deadline = mNow.get() + nanos;
+        final Thread current = Thread.currentThread();
+        mWaiters.add(current);
+        try {
+            //先登记再检查时间：advance()是先改时间再唤醒，两边至少有一边能看到对方
+            if (mNow.get() < deadline) {
+                LockSupport.park(blocker);
+            }
+        } finally {
+            mWaiters.remove(current);
+        }
+    }
+}
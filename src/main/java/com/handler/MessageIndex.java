@@ -0,0 +1,259 @@
+package com.handler;
+
+
+import java.util.Objects;
+
+/**
+ * {@link MessageQueueMini} 的二级索引，让 removeMessages/hasMessages 不用再遍历整个队列。
+ * <p>
+ * ①按 (target, what) 索引所有消息；
+ * ②按 (target, obj) 索引带token的消息；
+ * ③按 (target, callback) 索引post出去的Runnable。
+ * 同一个键下的消息用侵入式的双向链表串起来(链接就是 MessageMini 上的 whatPrev/whatNext 等字段)。
+ * 键到链表头的哈希表也是侵入式的：桶自己带着键和槽里的下一个桶，不用HashMap的Entry；
+ * 键下的消息都出队了，桶就从表里摘下来放回池子，下次有新的键再拿出来用。
+ * 所以入队、出队维护索引时不需要为每条消息分配内存，只有表扩容、池子空了的时候才分配。
+ * <p>
+ * 索引只记录还在mStore里的消息，和mStore一样只在持有队列锁的时候访问。
+ * 消息发送出去之后，不要再修改它的what、obj、callback，否则索引就对不上了(源码里同样不允许这么做)。
+ */
+final class MessageIndex {
+    static final int BY_WHAT = 0;
+    static final int BY_TOKEN = 1;
+    static final int BY_CALLBACK = 2;
+
+    //空闲的桶最多留这么多，够同时在用的键反复来去；多出来的交给GC
+    private static final int MAX_POOL_SIZE = 64;
+    private static final int INITIAL_CAPACITY = 16;
+
+    //一个键下的所有消息；键是 (target, what) 或者 (target, 某个对象)
+    private static final class Bucket {
+        HandlerMini target;
+        int what;
+        Object ref;
+        int hash;
+        MessageMini head;
+        //哈希表同一个槽里的下一个桶；在池子里时是池子里的下一个
+        Bucket chain;
+    }
+
+    //三个索引各一张表，槽的个数是2的幂
+    private final Bucket[][] mTables = {
+            new Bucket[INITIAL_CAPACITY], new Bucket[INITIAL_CAPACITY], new Bucket[INITIAL_CAPACITY]};
+    private final int[] mSizes = new int[3];
+    //空闲的桶，三张表共用
+    private Bucket mPool;
+    private int mPoolSize;
+
+    void add(MessageMini msg) {
+        if (msg.target == null) {
+            return;
+        }
+        link(BY_WHAT, msg.target, msg.what, null, msg);
+        if (msg.obj != null) {
+            link(BY_TOKEN, msg.target, 0, msg.obj, msg);
+        }
+        if (msg.callback != null) {
+            link(BY_CALLBACK, msg.target, 0, msg.callback, msg);
+        }
+    }
+
+    void remove(MessageMini msg) {
+        if (msg.target == null) {
+            return;
+        }
+        unlink(BY_WHAT, msg.target, msg.what, null, msg);
+        if (msg.obj != null) {
+            unlink(BY_TOKEN, msg.target, 0, msg.obj, msg);
+        }
+        if (msg.callback != null) {
+            unlink(BY_CALLBACK, msg.target, 0, msg.callback, msg);
+        }
+    }
+
+    //(h, what)下的第一条消息，用 next(msg, BY_WHAT) 遍历；没有返回null
+    MessageMini byWhat(HandlerMini h, int what) {
+        return head(BY_WHAT, h, what, null);
+    }
+
+    //(h, token)下的第一条消息，用 next(msg, BY_TOKEN) 遍历；没有返回null
+    MessageMini byToken(HandlerMini h, Object token) {
+        return head(BY_TOKEN, h, 0, Objects.requireNonNull(token));
+    }
+
+    //(h, callback)下的第一条消息，用 next(msg, BY_CALLBACK) 遍历；没有返回null
+    MessageMini byCallback(HandlerMini h, Runnable r) {
+        return head(BY_CALLBACK, h, 0, Objects.requireNonNull(r));
+    }
+
+    static MessageMini next(MessageMini msg, int index) {
+        switch (index) {
+            case BY_WHAT:
+                return msg.whatNext;
+            case BY_TOKEN:
+                return msg.tokenNext;
+            default:
+                return msg.callbackNext;
+        }
+    }
+
+    private static MessageMini prev(MessageMini msg, int index) {
+        switch (index) {
+            case BY_WHAT:
+                return msg.whatPrev;
+            case BY_TOKEN:
+                return msg.tokenPrev;
+            default:
+                return msg.callbackPrev;
+        }
+    }
+
+    private static void setNext(MessageMini msg, int index, MessageMini next) {
+        switch (index) {
+            case BY_WHAT:
+                msg.whatNext = next;
+                break;
+            case BY_TOKEN:
+                msg.tokenNext = next;
+                break;
+            default:
+                msg.callbackNext = next;
+        }
+    }
+
+    private static void setPrev(MessageMini msg, int index, MessageMini prev) {
+        switch (index) {
+            case BY_WHAT:
+                msg.whatPrev = prev;
+                break;
+            case BY_TOKEN:
+                msg.tokenPrev = prev;
+                break;
+            default:
+                msg.callbackPrev = prev;
+        }
+    }
+
+    private static int hash(HandlerMini h, int what, Object ref) {
+        int hash = (System.identityHashCode(h) * 31 + what) * 31 + System.identityHashCode(ref);
+        return hash ^ (hash >>> 16);
+    }
+
+    private Bucket bucket(int index, HandlerMini h, int what, Object ref) {
+        Bucket[] table = mTables[index];
+        for (Bucket b = table[hash(h, what, ref) & (table.length - 1)]; b != null; b = b.chain) {
+            if (b.target == h && b.what == what && b.ref == ref) {
+                return b;
+            }
+        }
+        return null;
+    }
+
+    private MessageMini head(int index, HandlerMini h, int what, Object ref) {
+        Bucket bucket = bucket(index, h, what, ref);
+        return bucket == null ? null : bucket.head;
+    }
+
+    //新的键：从池子里拿一个桶(池子空了才new)，挂到表里
+    private Bucket insert(int index, HandlerMini h, int what, Object ref) {
+        Bucket bucket = mPool;
+        if (bucket != null) {
+            mPool = bucket.chain;
+            mPoolSize--;
+        } else {
+            bucket = new Bucket();
+        }
+        bucket.target = h;
+        bucket.what = what;
+        bucket.ref = ref;
+        bucket.hash = hash(h, what, ref);
+        if (++mSizes[index] > mTables[index].length * 3 / 4) {
+            resize(index);
+        }
+        Bucket[] table = mTables[index];
+        int slot = bucket.hash & (table.length - 1);
+        bucket.chain = table[slot];
+        table[slot] = bucket;
+        return bucket;
+    }
+
+    //链表空了：把桶从表里摘下来，清掉键(不要拖住handler和token)，放回池子
+    private void release(int index, Bucket bucket) {
+        Bucket[] table = mTables[index];
+        int slot = bucket.hash & (table.length - 1);
+        if (table[slot] == bucket) {
+            table[slot] = bucket.chain;
+        } else {
+            Bucket p = table[slot];
+            while (p.chain != bucket) {
+                p = p.chain;
+            }
+            p.chain = bucket.chain;
+        }
+        mSizes[index]--;
+        bucket.target = null;
+        bucket.ref = null;
+        bucket.head = null;
+        if (mPoolSize < MAX_POOL_SIZE) {
+            bucket.chain = mPool;
+            mPool = bucket;
+            mPoolSize++;
+        } else {
+            bucket.chain = null;
+        }
+    }
+
+    //表只扩不缩，同时在用的键最多的时候有多少就留多大
+    private void resize(int index) {
+        Bucket[] old = mTables[index];
+        Bucket[] table = new Bucket[old.length * 2];
+        for (Bucket b : old) {
+            while (b != null) {
+                Bucket next = b.chain;
+                int slot = b.hash & (table.length - 1);
+                b.chain = table[slot];
+                table[slot] = b;
+                b = next;
+            }
+        }
+        mTables[index] = table;
+    }
+
+    //头插法放进链表
+    private void link(int index, HandlerMini h, int what, Object ref, MessageMini msg) {
+        Bucket bucket = bucket(index, h, what, ref);
+        if (bucket == null) {
+            bucket = insert(index, h, what, ref);
+        }
+        MessageMini head = bucket.head;
+        setPrev(msg, index, null);
+        setNext(msg, index, head);
+        if (head != null) {
+            setPrev(head, index, msg);
+        }
+        bucket.head = msg;
+    }
+
+    private void unlink(int index, HandlerMini h, int what, Object ref, MessageMini msg) {
+        MessageMini prev = prev(msg, index);
+        MessageMini next = next(msg, index);
+        if (next != null) {
+            setPrev(next, index, prev);
+        }
+        if (prev != null) {
+            setNext(prev, index, next);
+        } else {
+            //是链表头，需要改bucket；链表空了就把桶收回去
+            Bucket bucket = bucket(index, h, what, ref);
+            if (bucket != null && bucket.head == msg) {
+                if (next == null) {
+                    release(index, bucket);
+                } else {
+                    bucket.head = next;
+                }
+            }
+        }
+        setPrev(msg, index, null);
+        setNext(msg, index, null);
+    }
+}
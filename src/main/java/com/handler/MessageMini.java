@@ -1,7 +1,12 @@
 package com.handler;
 
 
+import com.utils.VirtualThreads;
+
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 定义包含描述和任意数据对象的消息，可以发送到Handler中。
@@ -20,12 +25,29 @@ public final class MessageMini implements Serializable {
     public Object obj;
 
     //对于其他数据传输，请使用setData 。
+    //数值类的数据可以用 setLong()/setDouble()/setBytes() 这几个固定的槽位，不用装箱、也不用为了带数据再new一个对象。
+    //槽位的数组第一次用到时才分配，消息回收时只清零、不释放，跟着消息一起在池子里复用，所以稳定之后发消息完全不分配内存。
+    public static final int LONG_SLOTS = 4;
+    public static final int DOUBLE_SLOTS = 4;
+    public static final int MAX_BYTES = 256;
+
+    private long[] mLongs;
+    private double[] mDoubles;
+    private byte[] mBytes;
+    private int mBytesLength;
 
     //可选的 Messenger，可以在其中发送对此消息的回复。 具体如何使用的语义取决于发送方和接收方。
 //    public Messenger replyTo;
 
+    //什么时候发送，消息队列时钟上的纳秒
     /*package*/ long when;
 
+    //插队(when==0)的消息进入消息队列的时间，和when同一个时间基准，用来统计调度延迟
+    /*package*/ long enqueueTime;
+
+    //入队序号，when相同的消息按它排先后；插队(when==0)的消息用负数，保证后插的排在更前面
+    /*package*/ long seq;
+
 //    /*package*/ Bundle data;
 
     /*package*/ HandlerMini target;
@@ -35,32 +57,163 @@ public final class MessageMini implements Serializable {
     // sometimes we store linked lists of these things
     /*package*/ MessageMini next;
 
+    //由MessageStore维护：双向链表里的前驱，以及在堆里的下标(不在堆里为-1)，用来O(1)/O(log n)地删除指定消息
+    /*package*/ MessageMini prev;
+    /*package*/ int heapIndex = -1;
+
+    //由MessageIndex维护的三条索引链表：(target, what)、(target, token)、(target, callback)
+    /*package*/ MessageMini whatPrev, whatNext, tokenPrev, tokenNext, callbackPrev, callbackNext;
+
+    //消息正在使用中：从入队开始，直到被回收进池子、再被obtain()取出来之前，都带着这个标记
+    /*package*/ static final int FLAG_IN_USE = 1 << 0;
+
+    //异步消息：不受同步屏障的限制，参见 MessageQueueMini#postSyncBarrier()
+    /*package*/ static final int FLAG_ASYNCHRONOUS = 1 << 1;
 
-    //这里有4个静态变量，只有一个目的，就是不用新买一封信，而且把之前用过的，垃圾桶里的无用信纸，重写涂改，写上新内容。
+    //优先级占两位：0普通，参见 setPriority()
+    /*package*/ static final int PRIORITY_SHIFT = 2;
+    /*package*/ static final int PRIORITY_MASK = 3 << PRIORITY_SHIFT;
+
+    //被 MessageTracerMini 抽中记录的消息，下面两个字段只在带着这个标记时才有意义
+    /*package*/ static final int FLAG_TRACED = 1 << 4;
+    /*package*/ long traceEnqueueNanos;
+    /*package*/ long traceThreadId;
+
+    /*package*/ int flags;
+
+    //三个优先级，数字越小越紧急。同一个looper上，到期的高优先级消息先处理，参见 MessageQueueMini#setPriorityAging()
+    public static final int PRIORITY_INTERACTIVE = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_BACKGROUND = 1;
+
+
+    //这几个静态变量，只有一个目的，就是不用新买一封信，而且把之前用过的，垃圾桶里的无用信纸，重写涂改，写上新内容。
+    //源码里所有线程共用一个池子，每次obtain()/recycle()都要抢同一把锁，而且mPoolSize从来没有加过，MAX_POOL_SIZE形同虚设。
+    //这里改成两层：每个线程先用自己的小池子，不用加锁；自己的池子空了或者满了，再成批地和全局池子交换。
     //源码锁写的方式有缺陷，锁不是final类型的，可以被修改
     //private static Object mPoolSync = new Object();
     private static final Object mPoolSync = new Object();
-    //存储垃圾message的链表
+    //全局池子：存储垃圾message的链表
     private static MessageMini mPool;
-    //链表长度
+    //全局池子的链表长度
     private static int mPoolSize = 0;
-    private static final int MAX_POOL_SIZE = 10;
+    //全局池子最多存多少条；每个线程自己的池子最多存多少条，和全局池子每次交换一半。
+    //可以用系统属性设置初始值，也可以运行时调用 setPoolCapacity()
+    private static volatile int sMaxPoolSize = Integer.getInteger("com.handler.MessageMini.maxPoolSize", 50);
+    private static volatile int sLocalPoolSize = Integer.getInteger("com.handler.MessageMini.localPoolSize", 32);
+    //obtain()从池子里拿到了消息、池子空了只好new一个的次数
+    private static final LongAdder sPoolHits = new LongAdder();
+    private static final LongAdder sPoolMisses = new LongAdder();
+
+    private static final class LocalPool {
+        MessageMini head;
+        int size;
+    }
+
+    //虚拟线程没有自己的池子(值为null)，直接用全局池子：一个虚拟线程上的looper可能有几十万个，每个都攒几十条消息太浪费内存
+    private static final ThreadLocal<LocalPool> sLocalPool = ThreadLocal.withInitial(
+            () -> VirtualThreads.isVirtual(Thread.currentThread()) ? null : new LocalPool());
 
     //等价于Message.obtain()
     public MessageMini() {
     }
 
-    //从全局池中返回一个新的 Message 实例。
+    //从池中返回一个新的 Message 实例。
     public static MessageMini obtain() {
+        final int localPoolSize = sLocalPoolSize;
+        LocalPool local = localPoolSize == 0 ? null : sLocalPool.get();
+        if (local == null) {
+            synchronized (mPoolSync) {
+                MessageMini m = mPool;
+                if (m != null) {
+                    mPool = m.next;
+                    mPoolSize--;
+                    m.next = null;
+                    m.flags = 0; // clear in-use flag
+                    sPoolHits.increment();
+                    return m;
+                }
+            }
+            sPoolMisses.increment();
+            return new MessageMini();
+        }
+        if (local.head == null) {
+            //自己的池子空了，从全局池子里成批拿一些过来
+            final int batch = transferBatch(localPoolSize);
+            synchronized (mPoolSync) {
+                while (mPool != null && local.size < batch) {
+                    MessageMini m = mPool;
+                    mPool = m.next;
+                    mPoolSize--;
+                    m.next = local.head;
+                    local.head = m;
+                    local.size++;
+                }
+            }
+        }
+        MessageMini m = local.head;
+        if (m != null) {
+            local.head = m.next;
+            local.size--;
+            m.next = null;
+            m.flags = 0; // clear in-use flag
+            sPoolHits.increment();
+            return m;
+        }
+        sPoolMisses.increment();
+        return new MessageMini();
+    }
+
+    /**
+     * 设置池子的容量：全局池子最多maxPoolSize条，每个(平台)线程自己的池子最多localPoolSize条，为0时不用线程自己的池子。
+     * 两个池子都满了之后回收的消息直接交给GC。也可以在启动时用系统属性
+     * com.handler.MessageMini.maxPoolSize 和 com.handler.MessageMini.localPoolSize 设置，默认是50和32。
+     * 调小之后全局池子里多出来的消息马上丢掉；各个线程池子里多出来的，在那个线程下次回收消息时还给全局池子或者丢掉。
+     */
+    public static void setPoolCapacity(int maxPoolSize, int localPoolSize) {
+        if (maxPoolSize < 0 || localPoolSize < 0) {
+            throw new IllegalArgumentException("pool sizes must not be negative: " + maxPoolSize + ", " + localPoolSize);
+        }
         synchronized (mPoolSync) {
-            if (mPool != null) {
+            sMaxPoolSize = maxPoolSize;
+            sLocalPoolSize = localPoolSize;
+            while (mPoolSize > maxPoolSize) {
                 MessageMini m = mPool;
                 mPool = m.next;
                 m.next = null;
-                return m;
+                mPoolSize--;
             }
         }
-        return new MessageMini();
+    }
+
+    public static int getMaxPoolSize() {
+        return sMaxPoolSize;
+    }
+
+    public static int getLocalPoolSize() {
+        return sLocalPoolSize;
+    }
+
+    //全局池子里现在有多少条消息，不包括各个线程自己池子里的
+    public static int getPoolSize() {
+        synchronized (mPoolSync) {
+            return mPoolSize;
+        }
+    }
+
+    //obtain()直接从池子里拿到消息的次数
+    public static long getPoolHitCount() {
+        return sPoolHits.sum();
+    }
+
+    //obtain()时池子是空的、只好新建消息的次数，相对于命中次数偏高说明池子太小了
+    public static long getPoolMissCount() {
+        return sPoolMisses.sum();
+    }
+
+    //自己的池子和全局池子之间一次交换多少条
+    private static int transferBatch(int localPoolSize) {
+        return Math.max(1, localPoolSize / 2);
     }
 
     /**
@@ -76,6 +229,7 @@ public final class MessageMini implements Serializable {
         m.arg1 = orig.arg1;
         m.arg2 = orig.arg2;
         m.obj = orig.obj;
+        m.copyPayloadFrom(orig);
 //        m.replyTo = orig.replyTo;
 //        if (orig.data != null) {
 //            m.data = new Bundle(orig.data);
@@ -135,19 +289,205 @@ public final class MessageMini implements Serializable {
         return m;
     }
 
-    //把消费的消息放到全局池
+    //把消费的消息放回池子。消息还在队列里、或者正在被处理时不能回收
     public void recycle() {
-        synchronized (mPoolSync) {
-            if (mPoolSize < MAX_POOL_SIZE) {
-                clearForRecycle();
-                next = mPool;
-                mPool = this;
+        if (isInUse()) {
+            throw new IllegalStateException("This message cannot be recycled because it is still in use.");
+        }
+        recycleUnchecked();
+    }
+
+    //回收一条可能还带着使用标记的消息，给looper和消息队列内部用
+    void recycleUnchecked() {
+        clearForRecycle();
+        flags = FLAG_IN_USE;
+        final int localPoolSize = sLocalPoolSize;
+        LocalPool local = localPoolSize == 0 ? null : sLocalPool.get();
+        if (local == null) {
+            synchronized (mPoolSync) {
+                if (mPoolSize < sMaxPoolSize) {
+                    next = mPool;
+                    mPool = this;
+                    mPoolSize++;
+                }
             }
+            return;
         }
+        if (local.size >= localPoolSize) {
+            //自己的池子满了，挪一批到全局池子；全局池子也满了，剩下的就交给GC
+            final int batch = transferBatch(localPoolSize);
+            synchronized (mPoolSync) {
+                for (int i = 0; i < batch && mPoolSize < sMaxPoolSize; i++) {
+                    MessageMini m = local.head;
+                    local.head = m.next;
+                    local.size--;
+                    m.next = mPool;
+                    mPool = m;
+                    mPoolSize++;
+                }
+            }
+            if (local.size >= localPoolSize) {
+                return;
+            }
+        }
+        next = local.head;
+        local.head = this;
+        local.size++;
     }
 
+    boolean isInUse() {
+        return (flags & FLAG_IN_USE) == FLAG_IN_USE;
+    }
+
+    void markInUse() {
+        flags |= FLAG_IN_USE;
+    }
 
+    /**
+     * Returns true if the message is asynchronous, meaning that it is not
+     * subject to {@link LooperMini} synchronization barriers.
+     */
+    public boolean isAsynchronous() {
+        return (flags & FLAG_ASYNCHRONOUS) != 0;
+    }
+
+    //设置为异步消息：同步屏障挡住普通消息的时候，异步消息照样可以分发。比如定时的渲染刷新，不想排在一大堆后台消息后面
+    //和setPriority()一样要在发送之前设置，消息已经在队列里时改了，队列就找不到它在哪个存储里
+    public void setAsynchronous(boolean async) {
+        if (isInUse()) {
+            throw new IllegalStateException("Cannot change a message that is in use to asynchronous or back.");
+        }
+        if (async) {
+            flags |= FLAG_ASYNCHRONOUS;
+        } else {
+            flags &= ~FLAG_ASYNCHRONOUS;
+        }
+    }
+
+
+    //第slot个long槽位，没有设置过的是0
+    public long getLong(int slot) {
+        checkSlot(slot, LONG_SLOTS);
+        return mLongs == null ? 0 : mLongs[slot];
+    }
+
+    public void setLong(int slot, long value) {
+        checkSlot(slot, LONG_SLOTS);
+        if (mLongs == null) {
+            mLongs = new long[LONG_SLOTS];
+        }
+        mLongs[slot] = value;
+    }
+
+    //第slot个double槽位，没有设置过的是0
+    public double getDouble(int slot) {
+        checkSlot(slot, DOUBLE_SLOTS);
+        return mDoubles == null ? 0 : mDoubles[slot];
+    }
+
+    public void setDouble(int slot, double value) {
+        checkSlot(slot, DOUBLE_SLOTS);
+        if (mDoubles == null) {
+            mDoubles = new double[DOUBLE_SLOTS];
+        }
+        mDoubles[slot] = value;
+    }
+
+    //把src[offset, offset+length)复制进消息自带的字节缓冲区，最多MAX_BYTES个字节；缓冲区只在不够大时才重新分配
+    public void setBytes(byte[] src, int offset, int length) {
+        if (length < 0 || length > MAX_BYTES) {
+            throw new IllegalArgumentException("length must be in [0, " + MAX_BYTES + "]: " + length);
+        }
+        if (mBytes == null || mBytes.length < length) {
+            mBytes = new byte[Math.max(length, 32)];
+        }
+        System.arraycopy(src, offset, mBytes, 0, length);
+        mBytesLength = length;
+    }
+
+    //把字节缓冲区的内容复制到dst[offset]开始的位置，返回复制了多少个字节
+    public int getBytes(byte[] dst, int offset) {
+        System.arraycopy(mBytes == null ? dst : mBytes, 0, dst, offset, mBytesLength);
+        return mBytesLength;
+    }
+
+    public int getBytesLength() {
+        return mBytesLength;
+    }
+
+    private static void checkSlot(int slot, int count) {
+        if (slot < 0 || slot >= count) {
+            throw new IndexOutOfBoundsException("slot " + slot + " out of [0, " + count + ")");
+        }
+    }
+
+    //复制另一条消息的槽位，复用自己已有的数组
+    void copyPayloadFrom(MessageMini orig) {
+        if (orig.mLongs != null) {
+            if (mLongs == null) {
+                mLongs = new long[LONG_SLOTS];
+            }
+            System.arraycopy(orig.mLongs, 0, mLongs, 0, LONG_SLOTS);
+        } else if (mLongs != null) {
+            Arrays.fill(mLongs, 0);
+        }
+        if (orig.mDoubles != null) {
+            if (mDoubles == null) {
+                mDoubles = new double[DOUBLE_SLOTS];
+            }
+            System.arraycopy(orig.mDoubles, 0, mDoubles, 0, DOUBLE_SLOTS);
+        } else if (mDoubles != null) {
+            Arrays.fill(mDoubles, 0);
+        }
+        if (orig.mBytesLength > 0) {
+            setBytes(orig.mBytes, 0, orig.mBytesLength);
+        } else {
+            mBytesLength = 0;
+        }
+    }
+
+
+    public int getPriority() {
+        switch ((flags & PRIORITY_MASK) >>> PRIORITY_SHIFT) {
+            case 1:
+                return PRIORITY_INTERACTIVE;
+            case 2:
+                return PRIORITY_BACKGROUND;
+            default:
+                return PRIORITY_NORMAL;
+        }
+    }
+
+    //在发送之前设置；消息已经在队列里时不能再改，否则队列找不到它在哪个优先级的存储里
+    public void setPriority(int priority) {
+        if (isInUse()) {
+            throw new IllegalStateException("Cannot change the priority of a message that is in use.");
+        }
+        final int bits;
+        switch (priority) {
+            case PRIORITY_INTERACTIVE:
+                bits = 1;
+                break;
+            case PRIORITY_NORMAL:
+                bits = 0;
+                break;
+            case PRIORITY_BACKGROUND:
+                bits = 2;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown priority: " + priority);
+        }
+        flags = (flags & ~PRIORITY_MASK) | (bits << PRIORITY_SHIFT);
+    }
+
+
+    //发送时间，单位毫秒
     public long getWhen() {
+        return TimeUnit.NANOSECONDS.toMillis(when);
+    }
+
+    //发送时间，单位纳秒
+    public long getWhenNanos() {
         return when;
     }
 
@@ -163,8 +503,20 @@ public final class MessageMini implements Serializable {
         arg1 = 0;
         arg2 = 0;
         obj = null;
+        //槽位的数组留着下次用
+        if (mLongs != null) {
+            Arrays.fill(mLongs, 0);
+        }
+        if (mDoubles != null) {
+            Arrays.fill(mDoubles, 0);
+        }
+        mBytesLength = 0;
 //        replyTo = null;
         when = 0;
+        enqueueTime = 0;
+        seq = 0;
+        prev = null;
+        heapIndex = -1;
         target = null;
         callback = null;
 //        data = null;
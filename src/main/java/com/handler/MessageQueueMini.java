@@ -3,22 +3,94 @@ package com.handler;
 
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 包含要由 {@link LooperMini} 调度的消息列表的低级类。消息不会直接添加到 MessageQueue，而是通过与 Looper 关联的 {@link HandlerMini} 对象。
  * 检索当前线程的 MessageQueue。
  */
 public class MessageQueueMini {
-    //消息队列，本质上是一个单向链表，这里引用的是一个头结点
-    MessageMini mMessages;
-    private final ArrayList<IdleHandler> mIdleHandlers = new ArrayList<IdleHandler>();
-    private IdleHandler[] mPendingIdleHandlers;
-    private boolean mQuiting;
+    //消息队列，源码里本质上是一个单向链表；这里抽象成可替换的存储结构，默认是快车道+小顶堆
+    final MessageStore mStore;
+    //异步消息单独放一个存储：同步屏障挡住mStore的时候，不用遍历整个队列去找异步消息
+    private final MessageStore mAsyncStore = new HeapMessageStore();
+    //同步消息按优先级分三条队列：mStore放普通消息，另外两条放交互和后台消息，参见 MessageMini#setPriority()
+    private final MessageStore mInteractiveStore = new HeapMessageStore();
+    private final MessageStore mBackgroundStore = new HeapMessageStore();
+    //每低一个优先级，到期的消息就当作晚到期这么久来排队，默认100毫秒
+    private volatile long mAgingNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    //同步屏障(target==null，arg1是token)，按 (when, seq) 排序，一般只有一两个
+    private final MessageStore mBarriers = new LinkedMessageStore();
+    private int mNextBarrierToken;
+    //消息的时间基准，msg.when 都是这个时钟上的纳秒
+    final ClockMini mClock;
+    //队列深度、调度延迟等运行指标
+    final LooperMetricsMini mMetrics;
+    //抽样记录消息的发送和处理过程，null表示不记录，参见 LooperMini#setTracer()
+    volatile MessageTracerMini mTracer;
+    //按 (target, what)、token、callback 查找消息的索引，和mStore保持一致
+    private final MessageIndex mIndex = new MessageIndex();
+    //保护mStore、mIndex、空闲处理程序。用显式锁而不是synchronized：虚拟线程在synchronized里阻塞会钉住载体线程，
+    //而looper阻塞等消息用的是park，本来就在锁外面，虚拟线程可以正常让出载体线程
+    private final ReentrantLock mLock = new ReentrantLock();
+    //这次持有锁期间被丢掉的同步调用，参见 discard_l()
+    private ArrayList<HandlerMini.BlockingCall<?>> mDiscardedCalls;
+    //下一条消息的入队序号
+    private long mNextSeq = 1;
+    //空闲处理程序，写时复制：增删(很少发生)在锁里换一个新数组，looper每次空闲时直接读，不用加锁、也不用复制
+    private static final IdleHandler[] NO_IDLE_HANDLERS = new IdleHandler[0];
+    private volatile IdleHandler[] mIdleHandlers = NO_IDLE_HANDLERS;
+    //下次空闲从第几个空闲处理程序开始跑，上次因为超出预算没跑到的先跑；只有looper线程读写
+    private int mIdleCursor;
+    //一次空闲最多跑多久的空闲处理程序，默认不限制
+    private volatile long mIdleBudgetNanos = Long.MAX_VALUE;
+    //quit()之后为true，next()在没有可以分发的消息时返回null，looper随之退出
+    private volatile boolean mQuitting;
     boolean mQuitAllowed = true;
 
-    // 指示 next() 是否在 pollOnce() 中以非零超时阻塞等待。
-    private boolean mBlocked;
+    //队列满了之后怎么办
+    public enum OverflowPolicy {
+        //阻塞发送消息的线程，直到队列有空位(或者looper退出、发送线程被中断，这时发送失败)
+        BLOCK,
+        //发送失败，返回false，消息还是调用方的
+        FAIL,
+        //丢掉队首(最早该处理)的一条消息，给新消息腾位置
+        DROP_OLDEST,
+        //丢掉新消息(会被回收)，但发送方法照样返回true，适合不关心结果的生产者
+        DROP_NEWEST
+    }
+
+    //容量，默认不限制；消息数(包括还在入口里的)达到容量后按mOverflowPolicy处理
+    private volatile int mCapacity = Integer.MAX_VALUE;
+    private volatile OverflowPolicy mOverflowPolicy = OverflowPolicy.BLOCK;
+    //BLOCK策略下等空位的生产者
+    private final Condition mNotFull = mLock.newCondition();
+    private int mWaitingProducers;
+    //admit_l()的结果
+    private static final int ADMITTED = 0;
+    private static final int REJECTED = 1;
+    private static final int DISCARDED = 2;
+
+    // next() 在 pollOnce() 中阻塞到哪个时间点(和msg.when同一个时间基准)。
+    // NOT_BLOCKED 表示looper没有阻塞；BLOCKED_FOREVER 表示没有消息，一直阻塞到被唤醒。
+    // 生产者只有在新消息比这个时间点更早时才需要唤醒looper。
+    private static final long NOT_BLOCKED = Long.MIN_VALUE;
+    private static final long BLOCKED_FOREVER = Long.MAX_VALUE;
+    private volatile long mBlockedUntil = NOT_BLOCKED;
+    // 调用 next() 的线程，也就是looper线程，唤醒时unpark它
+    private volatile Thread mPollThread;
 
     @SuppressWarnings("unused")
     private int mPtr; // used by native code
@@ -33,6 +105,15 @@ public class MessageQueueMini {
 
 
     MessageQueueMini() {
+        this(new HeapMessageStore(), SystemClockMini.INSTANCE);
+    }
+
+    MessageQueueMini(MessageStore store, ClockMini clock) {
+        mStore = store;
+        mClock = clock;
+        mMetrics = new LooperMetricsMini(clock);
+        //队列是在looper线程上prepare()出来的，还没调用next()之前quit()也要能唤醒它(参见 LooperPublisherMini)
+        mPollThread = Thread.currentThread();
 //        nativeInit();
     }
 
@@ -75,8 +156,14 @@ public class MessageQueueMini {
         if (handler == null) {
             throw new NullPointerException("Can't add a null IdleHandler");
         }
-        synchronized (this) {
-            mIdleHandlers.add(handler);
+        mLock.lock();
+        try {
+            final IdleHandler[] old = mIdleHandlers;
+            final IdleHandler[] handlers = Arrays.copyOf(old, old.length + 1);
+            handlers[old.length] = handler;
+            mIdleHandlers = handlers;
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -88,223 +175,941 @@ public class MessageQueueMini {
      * @param handler The IdleHandler to be removed.
      */
     public final void removeIdleHandler(IdleHandler handler) {
-        synchronized (this) {
-            mIdleHandlers.remove(handler);
+        mLock.lock();
+        try {
+            final IdleHandler[] old = mIdleHandlers;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] == handler) {
+                    final IdleHandler[] handlers = new IdleHandler[old.length - 1];
+                    System.arraycopy(old, 0, handlers, 0, i);
+                    System.arraycopy(old, i + 1, handlers, i, old.length - i - 1);
+                    mIdleHandlers = handlers;
+                    return;
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 限制每次空闲最多花多长时间跑空闲处理程序。下面几种情况都会停下来，剩下的留到下一次空闲时先跑：
+     * 超出预算；最早的延迟消息已经到期；有新消息入队了。这样空闲处理程序不会拖延下一条该处理的消息。
+     * 正在跑的那个空闲处理程序没办法打断，所以它们本身还是要短小。
+     */
+    public void setIdleBudget(long budget, TimeUnit unit) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("budget must not be negative: " + budget);
         }
+        mIdleBudgetNanos = unit.toNanos(budget);
     }
 
     final Object 锁 = new Object();
 
+    //多生产者单消费者的入口：生产者只做一次CAS，把消息压到这个无锁栈上(复用MessageMini.next串起来)，
+    //由looper线程(或者持有锁的线程)一次性取走，再按时间顺序放进mStore
+    private final AtomicReference<MessageMini> mIngress = new AtomicReference<>();
+
+    //批量分发时，一批里第一条之后、还没分发的消息。它们已经不在存储和mIndex里了，但还算在队列里：
+    //looper分发前用getAndSet取走一条，删除消息、退出时持有锁用compareAndSet拿走，谁把槽位置成null消息就归谁，
+    //所以looper不用为每条消息加一次锁。槽位只在looper取下一批时(持有锁)重新填
+    private AtomicReferenceArray<MessageMini> mBatch = new AtomicReferenceArray<>(0);
+    //这一批用了几个槽位，looper线程持有锁时写
+    private int mBatchSize;
+    //looper下一个要取的槽位，只有looper线程读写
+    private int mBatchCursor;
+    //这一批是 pollDeferred(max) 从压着的消息里取回来的，没分发完的要放回压着的消息前面，而不是放回存储
+    private boolean mBatchDeferred;
+
+    //LooperPublisherMini的订阅者没有需求时先压下来的消息，先进先出，持有锁读写。
+    //它们和一批里的消息一样不在存储和mIndex里了，但还算在队列深度里，所以容量照常反压生产者
+    private final ArrayDeque<MessageMini> mDeferred = new ArrayDeque<>();
+    //wakeUp()设置、consumeWakeUp()清除：让阻塞在next()里的looper先返回null
+    private volatile boolean mWakeRequested;
+
 
     //第一步：发送消息，会把消息发送到队列中
     //这个方法主要是用来处理发送消息的，当Handler通过自己enqueueMessage()将消息发送到这该函数中。
     //msg:要发送的消息内容
-    //when:延迟多久发送
+    //when:什么时候发送，mClock上的纳秒
     final boolean enqueueMessage(MessageMini msg, long when) {
         //同一条消息，只能被用一次，也就说明，同一条消息，只能发送一次
-        if (msg.when != 0) {
+        //target==null 是同步屏障专用的，退出也不再靠发一条空target的消息，而是quit()
+        if (msg.target == null) {
+            throw new IllegalArgumentException("Message must have a target.");
+        }
+        if (msg.isInUse()) {
             throw new RuntimeException(msg + " This message is already in use.");
         }
-        if (msg.target == null && !mQuitAllowed) {
-            throw new RuntimeException("Main thread not allowed to quit");
+        if (mQuitting) {
+            System.out.println("sending message to a Handler on a dead thread");
+            return false;
+        }
+        //有界队列：满了才加锁按策略处理。检查和入队之间没有加锁，并发发送时可能略微超过容量
+        if (mCapacity != Integer.MAX_VALUE && mMetrics.getQueueDepth() >= mCapacity) {
+            final int result;
+            mLock.lock();
+            try {
+                result = admit_l(msg);
+            } finally {
+                unlock();
+            }
+            if (result != ADMITTED) {
+                return result == DISCARDED;
+            }
+        }
+        msg.markInUse();
+        msg.when = when;
+        //普通消息的when不会早于入队时间，调度延迟直接从when算起，省掉一次读时钟；只有插队的消息需要记下入队时间
+        msg.enqueueTime = when == 0 ? mClock.uptimeNanos() : 0;
+        final MessageTracerMini tracer = mTracer;
+        if (tracer != null) {
+            tracer.onEnqueue(msg, mClock.uptimeNanos());
+        }
+        mMetrics.onEnqueued();
+
+        //不加锁，CAS压栈
+        MessageMini head;
+        do {
+            head = mIngress.get();
+            msg.next = head;
+        } while (!mIngress.compareAndSet(head, msg));
+
+        //开头检查过mQuitting之后才压栈：quit()和looper最后一次取走入口可能都已经过去了，没人会再来取。
+        //先压栈再读mQuitting，quit()是先置mQuitting再让looper最后取一次，所以两边至少有一边能看到对方；
+        //这里替looper取走丢掉，被丢掉的同步调用在unlock()里取消，不会一直等下去。
+        //还是返回true，和发送成功之后马上被quit()丢掉一样
+        if (mQuitting) {
+            mLock.lock();
+            try {
+                drainIngress_l();
+            } finally {
+                unlock();
+            }
+            return true;
+        }
+
+        // 如果looper阻塞/休眠中，并且新消息比它等待的时间点更早，才唤醒looper循环机制处理消息
+        // looper是先公布mBlockedUntil再检查mIngress，这里是先压栈再读mBlockedUntil，所以两边至少有一边能看到对方
+        if (when < mBlockedUntil) {
+            nativeWake();
+        }
+        return true;
+    }
+
+    /**
+     * 合并发送：队列里已经有一条还没处理的、target和what相同(matchObj为true时obj也要相同)的消息时，不再插入新消息。
+     * replace为true时把新消息的arg1、arg2、obj以及long/double/字节槽位写到已有的消息上，否则直接丢掉新消息；
+     * 已有的消息保持原来的发送时间和位置，新消息会被回收。没有相同的消息时，和普通的发送一样。
+     * 通过(target, what)索引查找，不会遍历整个队列。
+     */
+    final boolean enqueueCoalescedMessage(MessageMini msg, long when, boolean matchObj, boolean replace) {
+        if (msg.target == null) {
+            throw new IllegalArgumentException("Message must have a target.");
+        }
+        if (msg.isInUse()) {
+            throw new RuntimeException(msg + " This message is already in use.");
         }
-        final boolean needWake;
-        synchronized (this) {
-            if (mQuiting) {
+        final boolean wake;
+        mLock.lock();
+        try {
+            if (mQuitting) {
                 System.out.println("sending message to a Handler on a dead thread");
                 return false;
-            } else if (msg.target == null) {
-                mQuiting = true;
             }
+            //入口里可能还有相同的消息，先收进来
+            drainIngress_l();
+            for (MessageMini p = mIndex.byWhat(msg.target, msg.what); p != null; p = MessageIndex.next(p, MessageIndex.BY_WHAT)) {
+                if (p.callback == null && (!matchObj || p.obj == msg.obj)) {
+                    if (replace) {
+                        p.arg1 = msg.arg1;
+                        p.arg2 = msg.arg2;
+                        p.copyPayloadFrom(msg);
+                        if (p.obj != msg.obj) {
+                            //obj变了，token索引也要跟着变
+                            mIndex.remove(p);
+                            p.obj = msg.obj;
+                            mIndex.add(p);
+                        }
+                    }
+                    msg.recycleUnchecked();
+                    return true;
+                }
+            }
+            //没有可以合并的消息，持有锁直接放进mStore，不用再经过入口
+            if (mMetrics.getQueueDepth() >= mCapacity) {
+                final int result = admit_l(msg);
+                if (result != ADMITTED) {
+                    return result == DISCARDED;
+                }
+            }
+            msg.markInUse();
             msg.when = when;
+            msg.enqueueTime = when == 0 ? mClock.uptimeNanos() : 0;
+            msg.seq = when == 0 ? -mNextSeq++ : mNextSeq++;
+            final MessageTracerMini tracer = mTracer;
+            if (tracer != null) {
+                tracer.onEnqueue(msg, mClock.uptimeNanos());
+            }
+            mMetrics.onEnqueued();
+            addToStore_l(msg, mClock.uptimeNanos());
+            //looper是持有锁公布mBlockedUntil的，这里读到的就是它真正要睡到的时间点
+            wake = when < mBlockedUntil;
+        } finally {
+            unlock();
+        }
+        if (wake) {
+            nativeWake();
+        }
+        return true;
+    }
 
-            MessageMini p = mMessages;
-            //把新的消息放到头结点的几种情况：
-            //①该链表本来就是空链表
-            //②新消息不需要等待，是立即发送型的
-            //③新消息的发送时间 比 现在头结点的发送事件要早
-            if (p == null || when == 0 || when < p.when) {
-                msg.next = p;
-                mMessages = msg;
-                needWake = mBlocked; // new head, might need to wake up
-            } else {
-                MessageMini prev = null;
-                //相当于一个时间轴把，按照时间顺序，把新消息插入到对应位置
-                while (p != null && p.when <= when) {
-                    prev = p;
-                    p = p.next;
-                }
-                //插入
-                msg.next = prev.next;
-                prev.next = msg;
+    //丢掉一条还没分发的消息。调用方必须持有锁。
+    //同步调用(HandlerMini#callWithScissors/callAsync)的消息被丢掉时，等待方要知道它不会执行了，记下来等解锁之后再通知
+    private void discard_l(MessageMini msg) {
+        if (msg.callback instanceof HandlerMini.BlockingCall) {
+            if (mDiscardedCalls == null) {
+                mDiscardedCalls = new ArrayList<>();
+            }
+            mDiscardedCalls.add((HandlerMini.BlockingCall<?>) msg.callback);
+        }
+        msg.recycleUnchecked();
+    }
+
+    //可能丢掉消息的地方用它代替mLock.unlock()：解锁之后再取消被丢掉的同步调用，不在锁里执行future上挂的回调
+    private void unlock() {
+        final ArrayList<HandlerMini.BlockingCall<?>> calls = mDiscardedCalls;
+        mDiscardedCalls = null;
+        mLock.unlock();
+        if (calls != null) {
+            for (HandlerMini.BlockingCall<?> call : calls) {
+                call.cancel(false);
+            }
+        }
+    }
+
+    //相当于源码里的 nativeWake(mPtr)
+    private void nativeWake() {
+        LockSupport.unpark(mPollThread);
+    }
 
-                needWake = false; // still waiting on head, no need to wake up
+    //相当于源码里的 nativePollOnce(mPtr, timeoutMillis)：阻塞到wakeTime，或者被nativeWake()提前唤醒
+    private void nativePollOnce(long wakeTime) {
+        final long start = mClock.uptimeNanos();
+        if (wakeTime == BLOCKED_FOREVER) {
+            mClock.park(this);
+        } else {
+            long timeoutNanos = wakeTime - mClock.uptimeNanos();
+            if (timeoutNanos > 0) {
+                mClock.parkNanos(this, timeoutNanos);
             }
+        }
+        mBlockedUntil = NOT_BLOCKED;
+        mMetrics.onBlocked(mClock.uptimeNanos() - start);
+        //looper靠quit()退出，不响应中断；清掉中断标记，否则park会立即返回，变成空转
+        Thread.interrupted();
+    }
 
-            this.notify();
+    //把入口栈里的消息全部取出来，按入队先后放进mStore。调用方必须持有锁
+    private void drainIngress_l() {
+        MessageMini p = mIngress.getAndSet(null);
+        if (p == null) {
+            return;
         }
-        // 如果looper阻塞/休眠中，则唤醒looper循环机制处理消息
-//        if (needWake) {
-////            nativeWake(mPtr);
-//
-//        }
+        //栈是后进先出的，先反转成入队顺序，seq才能保证when相同时先来先处理
+        MessageMini reversed = null;
+        while (p != null) {
+            MessageMini n = p.next;
+            p.next = reversed;
+            reversed = p;
+            p = n;
+        }
+        final long now = mClock.uptimeNanos();
+        while (reversed != null) {
+            MessageMini n = reversed.next;
+            reversed.next = null;
+            if (mQuitting) {
+                //和quit()同时发送的消息，生产者没看到mQuitting，这里替它丢掉
+                dequeued_l(1);
+                discard_l(reversed);
+            } else {
+                reversed.seq = reversed.when == 0 ? -mNextSeq++ : mNextSeq++;
+                addToStore_l(reversed, now);
+            }
+            reversed = n;
+        }
+    }
 
+    /**
+     * 退出：之后不再接收新消息，next()返回null，looper随之结束。
+     * safe为false时丢掉所有还没处理的消息；为true时只丢掉还没到期的消息，已经到期的照常处理完再退出。
+     * 同步屏障一律移除，否则被挡住的消息永远处理不完。
+     */
+    void quit(boolean safe) {
+        if (!mQuitAllowed) {
+            throw new IllegalStateException("Main thread not allowed to quit.");
+        }
+        mLock.lock();
+        try {
+            if (mQuitting) {
+                return;
+            }
+            drainIngress_l();
+            mQuitting = true;
+            final long now = mClock.uptimeNanos();
+            //一批里剩下的消息都已经到期，safe时照常分发
+            removeIf_l(p -> !safe || p.when > now);
+            mBarriers.removeIf(p -> true, MessageMini::recycleUnchecked);
+            //等空位的生产者也该醒了，它们会看到mQuitting然后发送失败
+            mNotFull.signalAll();
+        } finally {
+            unlock();
+        }
+        nativeWake();
+    }
 
-        return true;
+    /**
+     * 限制队列里最多有多少条消息(包括延迟消息，不包括同步屏障)，满了之后按policy处理，
+     * 这样生产者再快，也不会因为looper处理得慢而把内存撑爆。各个策略的次数可以在 {@link LooperMetricsMini} 里查到。
+     * capacity为Integer.MAX_VALUE表示不限制，这也是默认值。调小容量不会删掉已经在队列里的消息。
+     */
+    public void setCapacity(int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        }
+        mLock.lock();
+        try {
+            mCapacity = capacity;
+            mOverflowPolicy = Objects.requireNonNull(policy);
+            mNotFull.signalAll();
+        } finally {
+            unlock();
+        }
     }
 
+    //有没有已经到期、可以马上分发的消息，被同步屏障挡住的和还没到期的延迟消息都不算
+    final boolean hasDueMessages() {
+        mLock.lock();
+        try {
+            drainIngress_l();
+            final long now = mClock.uptimeNanos();
+            final MessageMini msg = peek_l(now);
+            return msg != null && msg.when <= now;
+        } finally {
+            //drainIngress_l()在退出之后会丢掉消息，被丢掉的同步调用要取消
+            unlock();
+        }
+    }
 
-    //获取最近收到的一条短信
-    final synchronized  MessageMini next() {
-        int pendingIdleHandlerCount = -1; // -1 仅在第一次迭代期间
+    boolean isQuitting() {
+        return mQuitting;
+    }
 
-        //0，立即返回，没有阻塞；
-        //负数，一直阻塞，直到事件发生；
-        //正数，表示最多等待多久时间；
-        //而我们传入的nextPollTimeoutMillis = -1，此时会一直阻塞。
-        int nextPollTimeoutMillis = 0;
+    /**
+     * 优先级的老化时间。几条队列的头都到期时，高优先级的先处理；但是低优先级的消息等得越久越靠前：
+     * 排队时每低一个优先级就当作晚到期aging，所以后台消息最多比交互消息多等2*aging，不会一直饿着。
+     * aging为0时忽略优先级，全部按时间顺序处理。
+     */
+    public void setPriorityAging(long aging, TimeUnit unit) {
+        if (aging < 0) {
+            throw new IllegalArgumentException("aging must not be negative: " + aging);
+        }
+        mAgingNanos = unit.toNanos(aging);
+    }
 
-        for (; ; ) {
-            if (nextPollTimeoutMillis != 0) {
-                // 将当前线程中挂起的任何绑定器命令刷新到内核驱动程序。
-                // 在执行可能会阻塞很长时间的操作之前调用此方法非常有用，可以确保释放了所有挂起的对象引用，以防止进程持有对象的时间超过需要的时间。
-//                BinderMini.flushPendingCommands();
-            }
-            //相当于在这等待Sleep(nextPollTimeoutMillis)
-//            nativePollOnce(mPtr, nextPollTimeoutMillis);
-//            锁
+    public int getCapacity() {
+        return mCapacity;
+    }
 
-//            synchronized (锁){
+    //队列满了，按策略决定msg能不能入队。调用方必须持有锁，BLOCK策略下会在这里等待(等待期间释放锁)
+    private int admit_l(MessageMini msg) {
+        switch (mOverflowPolicy) {
+            case FAIL:
+                mMetrics.onRejected();
+                return REJECTED;
+            case DROP_NEWEST:
+                mMetrics.onDroppedNewest();
+                discard_l(msg);
+                return DISCARDED;
+            case DROP_OLDEST:
+                drainIngress_l();
+                while (mMetrics.getQueueDepth() >= mCapacity) {
+                    //丢掉排在队首、等得最久的那条(几个存储的头里最早的一个)
+                    MessageMini oldest = earlier(earlier(mStore.peek(), mAsyncStore.peek()),
+                            earlier(mInteractiveStore.peek(), mBackgroundStore.peek()));
+                    if (oldest == null) {
+                        break;
+                    }
+                    storeFor(oldest).remove(oldest);
+                    mIndex.remove(oldest);
+                    dequeued_l(1);
+                    mMetrics.onDroppedOldest();
+                    discard_l(oldest);
+                }
+                return ADMITTED;
+            default:
+                if (Thread.currentThread() == mPollThread) {
+                    //looper自己给自己发消息，阻塞就永远等不到空位了，只能先放进去
+                    return ADMITTED;
+                }
+                final long start = mClock.uptimeNanos();
+                mWaitingProducers++;
                 try {
-                    wait(nextPollTimeoutMillis);
+                    while (!mQuitting && mMetrics.getQueueDepth() >= mCapacity) {
+                        mNotFull.await();
+                    }
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    Thread.currentThread().interrupt();
+                    mMetrics.onRejected();
+                    return REJECTED;
+                } finally {
+                    mWaitingProducers--;
+                    mMetrics.onProducerBlocked(mClock.uptimeNanos() - start);
                 }
+                return mQuitting ? REJECTED : ADMITTED;
+        }
+    }
 
-//            }
+    private static MessageMini earlier(MessageMini a, MessageMini b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return MessageStore.before(b, a) ? b : a;
+    }
 
+    /**
+     * 在队列里放一个同步屏障，返回它的token。
+     * 屏障之后的同步消息都会被挡住，直到用这个token调用 {@link #removeSyncBarrier(int)}；
+     * 异步消息({@link MessageMini#setAsynchronous(boolean)})不受影响，照常按时间分发。
+     * 屏障之前已经发送的消息不受影响。必须保证屏障最后会被移除，否则这个looper上的普通消息就再也处理不了了。
+     */
+    public int postSyncBarrier() {
+        mLock.lock();
+        try {
+            //先把入口里已经发送的消息收进来，它们的seq比屏障小，排在屏障前面
+            drainIngress_l();
+            final int token = mNextBarrierToken++;
+            final MessageMini msg = MessageMini.obtain();
+            msg.markInUse();
+            msg.when = mClock.uptimeNanos();
+            msg.seq = mNextSeq++;
+            msg.arg1 = token;
+            mBarriers.add(msg, msg.when);
+            return token;
+        } finally {
+            unlock();
+        }
+    }
 
+    //移除token对应的同步屏障，被它挡住的同步消息可以继续分发了
+    public void removeSyncBarrier(int token) {
+        mLock.lock();
+        try {
+            final MessageMini first = mBarriers.peek();
+            final boolean wasFirst = first != null && first.arg1 == token;
+            final int count = mBarriers.size();
+            mBarriers.removeIf(p -> p.arg1 == token, MessageMini::recycleUnchecked);
+            if (mBarriers.size() == count) {
+                throw new IllegalStateException("The specified message queue synchronization "
+                        + "barrier token has not been posted or has already been removed.");
+            }
+            //队首的屏障没了，looper可能正挡着消息在睡觉；不是队首的屏障，本来就没在挡消息
+            if (!wasFirst || mQuitting) {
+                return;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        nativeWake();
+    }
+
+
+    //获取最近收到的一条短信
+    final MessageMini next() {
+        return next(1);
+    }
+
+    //一次取出最多maxBatch条已经到期的消息，只需要加一次锁：返回第一条，剩下的用 nextInBatch() 逐条取。
+    //第一条到期之前会阻塞；quit()之后没有可以分发的消息时返回null。
+    //调用之前，上一批要么已经取完，要么已经 requeueBatch() 放回了队列。
+    final MessageMini next(int maxBatch) {
+        boolean idleHandlersRan = false; // 每次调用next()只跑一轮空闲处理程序
+
+        //0，立即返回，没有阻塞；
+        //BLOCKED_FOREVER，一直阻塞，直到被唤醒；
+        //其他值，表示最多阻塞到这个时间点。
+        long nextWakeTime = 0;
+        mPollThread = Thread.currentThread();
+
+        for (; ; ) {
+            //相当于在这等待Sleep，但是来了更早的消息会被提前唤醒
+            if (nextWakeTime != 0) {
+                nativePollOnce(nextWakeTime);
+            }
+
+            mLock.lock();
+            try {
+                drainIngress_l();
 
-            synchronized (this) {
                 // 尝试检查下一条消息。找到就返回。
-                final long now = System.currentTimeMillis();
-                final MessageMini msg = mMessages;
+                final long now = mClock.uptimeNanos();
+                final MessageMini msg = peek_l(now);
                 if (msg != null) {
                     final long when = msg.when;
                     //找到消息，并且刚刚超过消息的延迟事件
                     if (now >= when) {
-                        mBlocked = false;
-                        mMessages = msg.next;
-                        msg.next = null;
-                        return msg;
+                        final MessageMini first = poll_l(msg);
+                        if (mBatch.length() < maxBatch - 1) {
+                            mBatch = new AtomicReferenceArray<>(maxBatch - 1);
+                        }
+                        int n = 0;
+                        while (n < maxBatch - 1) {
+                            final MessageMini p = peek_l(now);
+                            if (p == null || p.when > now) {
+                                break;
+                            }
+                            mBatch.set(n++, poll_l(p));
+                        }
+                        mBatchSize = n;
+                        mBatchCursor = 0;
+                        mBatchDeferred = false;
+                        return first;
                     } else {
-                        //比如要延迟发送短信，现在是3点，msg.when=5点，nextPollTimeoutMillis代表2个小时后再来检查一下
-                        nextPollTimeoutMillis = (int) Math.min(when - now, Integer.MAX_VALUE);
+                        //比如要延迟发送短信，现在是3点，msg.when=5点，那就睡到5点再来检查一下
+                        nextWakeTime = when;
                     }
                 } else {
-                    //要是真的没有收到消息，就干等着
-                    nextPollTimeoutMillis = -1;
+                    //要是真的没有收到消息(或者都被同步屏障挡住了)，就干等着
+                    nextWakeTime = BLOCKED_FOREVER;
                 }
 
-                // 如果是第一次，则获取要运行的空闲程序的数量。
-                if (pendingIdleHandlerCount < 0) {
-                    pendingIdleHandlerCount = mIdleHandlers.size();
+                //已经退出，并且没有可以立即分发的消息了
+                if (mQuitting) {
+                    return null;
                 }
-                if (pendingIdleHandlerCount == 0) {
-                    // 没有要运行的空闲处理程序。循环再等一会儿。
-                    mBlocked = true;
-                    continue;
+                //被wakeUp()叫醒，让调用方重新看看自己的状态
+                if (mWakeRequested) {
+                    return null;
                 }
 
-                if (mPendingIdleHandlers == null) {
-                    mPendingIdleHandlers = new IdleHandler[Math.max(pendingIdleHandlerCount, 4)];
+                if (idleHandlersRan || mIdleHandlers.length == 0) {
+                    idleHandlersRan = true;
+                    // 没有要运行的空闲处理程序。循环再等一会儿。
+                    // 阻塞前先公布等待的时间点，再检查一次入口：这之后入队的消息，生产者能看到mBlockedUntil并唤醒我们
+                    mBlockedUntil = nextWakeTime;
+                    if (mIngress.get() != null) {
+                        mBlockedUntil = NOT_BLOCKED;
+                        nextWakeTime = 0;
+                    }
+                    continue;
                 }
-                mPendingIdleHandlers = mIdleHandlers.toArray(mPendingIdleHandlers);
+            } finally {
+                unlock();
             }
 
             // Run the idle handlers.
             // We only ever reach this code block during the first iteration.
-            for (int i = 0; i < pendingIdleHandlerCount; i++) {
-                final IdleHandler idler = mPendingIdleHandlers[i];
-                mPendingIdleHandlers[i] = null; // release the reference to the handler
+            runIdleHandlers(nextWakeTime);
+            idleHandlersRan = true;
 
-                boolean keep = false;
-                try {
-                    keep = idler.queueIdle();
-                } catch (Throwable t) {
-                    System.out.println("IdleHandler threw exception");
-                }
+            // While calling an idle handler, a new message could have been delivered
+            // so go back and look again for a pending message without waiting.
+            nextWakeTime = 0;
+        }
+    }
+
+    //在looper线程上、锁外面跑一轮空闲处理程序，deadline是最早的延迟消息到期的时间
+    private void runIdleHandlers(long deadline) {
+        final IdleHandler[] handlers = mIdleHandlers;
+        final int count = handlers.length;
+        final long idleStart = mClock.uptimeNanos();
+        final long budgetEnd = idleStart + Math.min(mIdleBudgetNanos, BLOCKED_FOREVER - idleStart);
+        final long stopAt = Math.min(deadline, budgetEnd);
+        int start = mIdleCursor < count ? mIdleCursor : 0;
+        int runs = 0;
+        long now = idleStart;
+        while (runs < count) {
+            final IdleHandler idler = handlers[(start + runs) % count];
+            runs++;
+
+            boolean keep = false;
+            try {
+                keep = idler.queueIdle();
+            } catch (Throwable t) {
+                System.out.println("IdleHandler threw exception");
+            }
+
+            if (!keep) {
+                removeIdleHandler(idler);
+            }
+            now = mClock.uptimeNanos();
+            //超出预算、延迟消息到期、来了新消息，都先去处理消息
+            if (runs < count && (now >= stopAt || mIngress.get() != null)) {
+                break;
+            }
+        }
+        //下次从没跑到的那个开始；中途有空闲处理程序被删掉时下标会有偏差，最多让某个空闲处理程序早跑或晚跑一次
+        mIdleCursor = runs < count ? (start + runs) % count : 0;
 
-                if (!keep) {
-                    synchronized (this) {
-                        mIdleHandlers.remove(idler);
+        mMetrics.onIdleHandlers(runs, now - idleStart);
+    }
+
+    //looper线程：这一批里下一条还没被删掉的消息，取完了返回null。删除消息、quit()拿走的消息直接跳过
+    final MessageMini nextInBatch() {
+        while (mBatchCursor < mBatchSize) {
+            final MessageMini msg = mBatch.getAndSet(mBatchCursor++, null);
+            if (msg != null) {
+                return msg;
+            }
+        }
+        return null;
+    }
+
+    //looper线程：把这一批里还没分发的消息放回队列(处理超时、handler抛了异常)，它们的when和seq不变，所以还是原来的顺序。
+    //从压着的消息里取回来的一批，倒着放回压着的消息前面，也还是原来的顺序
+    final void requeueBatch() {
+        if (mBatchCursor >= mBatchSize) {
+            return;
+        }
+        mLock.lock();
+        try {
+            if (mBatchDeferred) {
+                for (int i = mBatchSize - 1; i >= mBatchCursor; i--) {
+                    final MessageMini msg = mBatch.getAndSet(i, null);
+                    if (msg != null) {
+                        mDeferred.addFirst(msg);
+                        dequeued_l(-1);
                     }
                 }
+            } else {
+                final long now = mClock.uptimeNanos();
+                for (int i = mBatchCursor; i < mBatchSize; i++) {
+                    final MessageMini msg = mBatch.getAndSet(i, null);
+                    if (msg != null) {
+                        addToStore_l(msg, now);
+                        dequeued_l(-1);
+                    }
+                }
+            }
+            mBatchSize = 0;
+            mBatchCursor = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    //looper线程：先压下一条已经取出来的消息，不分发也不回收，之后用 pollDeferred() 按原来的顺序取回。
+    //压着的消息照样查得到、删得掉，也还算在队列深度里；已经退出时直接丢掉
+    final void defer(MessageMini msg) {
+        mLock.lock();
+        try {
+            if (mQuitting) {
+                discard_l(msg);
+            } else {
+                mDeferred.add(msg);
+                dequeued_l(-1);
             }
+        } finally {
+            unlock();
+        }
+    }
 
-            // Reset the idle handler count to 0 so we do not run them again.
-            pendingIdleHandlerCount = 0;
+    //looper线程：按压下的顺序取回最多max条，只加一次锁：返回第一条，剩下的和 next(maxBatch) 一样用 nextInBatch() 逐条取，
+    //没分发完的用 requeueBatch() 放回去。没有压着的消息时返回null。调用之前，上一批要么已经取完，要么已经放回去了
+    final MessageMini pollDeferred(int max) {
+        mLock.lock();
+        try {
+            final MessageMini first = mDeferred.poll();
+            if (first == null) {
+                return null;
+            }
+            if (mBatch.length() < max - 1) {
+                mBatch = new AtomicReferenceArray<>(max - 1);
+            }
+            int n = 0;
+            MessageMini p;
+            while (n < max - 1 && (p = mDeferred.poll()) != null) {
+                mBatch.set(n++, p);
+            }
+            mBatchSize = n;
+            mBatchCursor = 0;
+            mBatchDeferred = true;
+            dequeued_l(n + 1);
+            return first;
+        } finally {
+            mLock.unlock();
+        }
+    }
 
-            // While calling an idle handler, a new message could have been delivered
-            // so go back and look again for a pending message without waiting.
-            nextPollTimeoutMillis = 0;
+    //looper线程：退出时丢掉还压着的消息
+    final void clearDeferred() {
+        mLock.lock();
+        try {
+            MessageMini msg;
+            while ((msg = mDeferred.poll()) != null) {
+                dequeued_l(1);
+                discard_l(msg);
+            }
+        } finally {
+            unlock();
         }
     }
 
-    //////////////////////////从消息队列里，移除某一条消息///////////////////////////////
-    //吐槽值拉满，这里竟然把【删除】和【是否查找到】的逻辑写在一起。👻鬼才操作👻
-    //原名removeMessages
-    final boolean hasMessages(HandlerMini h, int what, Object object, boolean doRemove) {
-        MessageMini p = mMessages;
-        while (p != null) {
-            if (p.target == h && p.what == what && (object == null || p.obj == object)) {
+    //让looper线程从阻塞的next()里返回null，哪怕队列没有退出。next()返回null时调用方用 consumeWakeUp() 区分是哪种情况
+    final void wakeUp() {
+        mWakeRequested = true;
+        nativeWake();
+    }
+
+    //looper线程：有没有被wakeUp()叫醒过，同时清掉这个标记
+    final boolean consumeWakeUp() {
+        if (!mWakeRequested) {
+            return false;
+        }
+        mWakeRequested = false;
+        return true;
+    }
+
+    //一批里和压着的消息里，有没有还没分发、满足条件的消息
+    private boolean inBatch_l(Predicate<MessageMini> filter) {
+        for (int i = 0; i < mBatchSize; i++) {
+            final MessageMini p = mBatch.get(i);
+            if (p != null && filter.test(p)) {
+                return true;
+            }
+        }
+        for (MessageMini p : mDeferred) {
+            if (filter.test(p)) {
                 return true;
             }
-            p = p.next;
         }
         return false;
     }
 
+    //拿走并回收一批里和压着的消息里还没分发、满足条件的消息。一批里的取出来时已经不算在队列深度里了，压着的还算
+    private void removeBatched_l(Predicate<MessageMini> filter) {
+        for (int i = 0; i < mBatchSize; i++) {
+            final MessageMini p = mBatch.get(i);
+            //looper可能正在取走这条消息，字段可能已经变了；下面的CAS失败说明它归looper了
+            if (p != null && filter.test(p) && mBatch.compareAndSet(i, p, null)) {
+                discard_l(p);
+            }
+        }
+        for (Iterator<MessageMini> it = mDeferred.iterator(); it.hasNext(); ) {
+            final MessageMini p = it.next();
+            if (filter.test(p)) {
+                it.remove();
+                dequeued_l(1);
+                discard_l(p);
+            }
+        }
+    }
+
+    //n条消息离开了队列(n为负数表示放回了队列)，有生产者在等空位时叫醒它们
+    private void dequeued_l(int n) {
+        mMetrics.onDequeued(n);
+        if (n > 0 && mWaitingProducers > 0) {
+            if (n == 1) {
+                mNotFull.signal();
+            } else {
+                mNotFull.signalAll();
+            }
+        }
+    }
+
+    //各个存储和mIndex要一起改，下面几个方法都必须持有锁调用
+    private MessageStore storeFor(MessageMini msg) {
+        if (msg.isAsynchronous()) {
+            return mAsyncStore;
+        }
+        switch (msg.getPriority()) {
+            case MessageMini.PRIORITY_INTERACTIVE:
+                return mInteractiveStore;
+            case MessageMini.PRIORITY_BACKGROUND:
+                return mBackgroundStore;
+            default:
+                return mStore;
+        }
+    }
+
+    private void addToStore_l(MessageMini msg, long now) {
+        storeFor(msg).add(msg, now);
+        mIndex.add(msg);
+    }
+
+    //下一条该分发的消息，不移除：有到期的消息时按优先级和老化挑一条，否则是最早到期的那条；
+    //被同步屏障挡住的同步消息不算，没有返回null
+    private MessageMini peek_l(long now) {
+        final MessageMini barrier = mBarriers.peek();
+        MessageMini best = mAsyncStore.peek();
+        best = pick(best, unblocked(mInteractiveStore.peek(), barrier), now);
+        best = pick(best, unblocked(mStore.peek(), barrier), now);
+        best = pick(best, unblocked(mBackgroundStore.peek(), barrier), now);
+        return best;
+    }
+
+    private static MessageMini unblocked(MessageMini sync, MessageMini barrier) {
+        return sync != null && barrier != null && MessageStore.before(barrier, sync) ? null : sync;
+    }
+
+    private MessageMini pick(MessageMini a, MessageMini b, long now) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+        final boolean aDue = a.when <= now;
+        if (aDue != b.when <= now) {
+            return aDue ? a : b;
+        }
+        if (!aDue) {
+            return earlier(a, b);
+        }
+        //都到期了：比较按优先级推迟之后的时间，相同时优先级高的先
+        final long agedA = agedWhen(a);
+        final long agedB = agedWhen(b);
+        if (agedA != agedB) {
+            return agedA < agedB ? a : b;
+        }
+        if (a.getPriority() != b.getPriority()) {
+            return a.getPriority() < b.getPriority() ? a : b;
+        }
+        return earlier(a, b);
+    }
+
+    private long agedWhen(MessageMini msg) {
+        final long delay = (msg.getPriority() - MessageMini.PRIORITY_INTERACTIVE) * mAgingNanos;
+        //aging设得很大时不要溢出
+        final long aged = msg.when + delay;
+        return delay < 0 || aged < msg.when ? Long.MAX_VALUE : aged;
+    }
+
+    //取出peek_l()返回的那条消息
+    private MessageMini poll_l(MessageMini msg) {
+        storeFor(msg).poll();
+        mIndex.remove(msg);
+        dequeued_l(1);
+        return msg;
+    }
+
+    //移除并回收所有存储里满足条件的消息
+    private void removeIf_l(Predicate<MessageMini> filter) {
+        final Consumer<MessageMini> removed = p -> {
+            mIndex.remove(p);
+            dequeued_l(1);
+            discard_l(p);
+        };
+        mStore.removeIf(filter, removed);
+        mAsyncStore.removeIf(filter, removed);
+        mInteractiveStore.removeIf(filter, removed);
+        mBackgroundStore.removeIf(filter, removed);
+        removeBatched_l(filter);
+    }
+
+    //把索引链表里满足条件的消息从mStore里删掉并回收。先删完再动索引，避免边遍历边修改链表
+    private void removeAll_l(@Nullable MessageMini head, int index, @Nullable Object object, @Nullable Runnable r) {
+        MessageMini removed = null;
+        for (MessageMini p = head; p != null; p = MessageIndex.next(p, index)) {
+            if ((r == null || p.callback == r) && (object == null || p.obj == object)) {
+                storeFor(p).remove(p);
+                p.next = removed;
+                removed = p;
+            }
+        }
+        while (removed != null) {
+            MessageMini n = removed.next;
+            removed.next = null;
+            mIndex.remove(removed);
+            dequeued_l(1);
+            discard_l(removed);
+            removed = n;
+        }
+    }
+
+    //////////////////////////从消息队列里，移除某一条消息///////////////////////////////
+    //吐槽值拉满，这里竟然把【删除】和【是否查找到】的逻辑写在一起。👻鬼才操作👻
+    //原名removeMessages，这里拆成了hasMessages和removeMessages；靠索引查找，不再遍历整个队列
+    final boolean hasMessages(HandlerMini h, int what, Object object) {
+        if (h == null) {
+            return false;
+        }
+        mLock.lock();
+        try {
+            drainIngress_l();
+            for (MessageMini p = mIndex.byWhat(h, what); p != null; p = MessageIndex.next(p, MessageIndex.BY_WHAT)) {
+                if (object == null || p.obj == object) {
+                    return true;
+                }
+            }
+            return inBatch_l(p -> p.target == h && p.what == what && (object == null || p.obj == object));
+        } finally {
+            unlock();
+        }
+    }
+
+    final boolean hasCallbacks(HandlerMini h, Runnable r) {
+        if (h == null) {
+            return false;
+        }
+        mLock.lock();
+        try {
+            drainIngress_l();
+            return mIndex.byCallback(h, r) != null || inBatch_l(p -> p.target == h && p.callback == r);
+        } finally {
+            unlock();
+        }
+    }
+
+    final void removeMessages(HandlerMini h, int what, @Nullable Object object) {
+        if (h == null) {
+            return;
+        }
+        mLock.lock();
+        try {
+            drainIngress_l();
+            removeAll_l(mIndex.byWhat(h, what), MessageIndex.BY_WHAT, object, null);
+            removeBatched_l(p -> p.target == h && p.what == what && (object == null || p.obj == object));
+        } finally {
+            unlock();
+        }
+    }
+
     //吐槽一下，这里写的属实有点👎🏻。源码里是复制代码再改个名字(连注释都一样)，新增参数，没有使用重载
     final void removeCallbacksAndMessages(HandlerMini h, @Nullable Object object) {
         removeCallbacksAndMessages(h, object, null);
     }
 
-    //这里一个很普通，很经典的链表删除算法
+    // 筛选条件为HandlerMini 和 消息内容相等；
+    // 如果object和r都为null，就表示清楚HandlerMini下的所有未发送消息，只有这种情况需要遍历整个队列
     final void removeCallbacksAndMessages(HandlerMini h, @Nullable Object object, @Nullable Runnable r) {
-        synchronized (this) {
-            MessageMini p = mMessages;
-            // 遍历链表，找出处理地为，筛选条件为HandlerMini 和 消息内容相等；
-            // 如果object为null，就表示清楚HandlerMini下的所有未发送消息
-            // 特殊处理：循环遍历删除头结点
-            while (p != null && p.target == h && (r == null || p.callback == r) && (object == null || p.obj == object)) {
-                MessageMini n = p.next;
-                mMessages = n;
-                p.recycle();
-                p = n;
-            }
-            while (p != null) {
-                MessageMini n = p.next;
-                if (n != null) {
-                    if (n.target == h && (object == null || n.obj == object)) {
-                        MessageMini nn = n.next;
-                        n.recycle();
-                        p.next = nn;
-                        continue;
-                    }
-                }
-                p = n;
+        if (h == null) {
+            return;
+        }
+        mLock.lock();
+        try {
+            drainIngress_l();
+            if (r != null) {
+                removeAll_l(mIndex.byCallback(h, r), MessageIndex.BY_CALLBACK, object, r);
+                removeBatched_l(p -> p.target == h && p.callback == r && (object == null || p.obj == object));
+            } else if (object != null) {
+                removeAll_l(mIndex.byToken(h, object), MessageIndex.BY_TOKEN, object, null);
+                removeBatched_l(p -> p.target == h && p.obj == object);
+            } else {
+                removeIf_l(p -> p.target == h);
             }
+        } finally {
+            unlock();
         }
     }
 
     //输出打印当前列表
     private void dumpQueue_l() {
-        MessageMini p = mMessages;
         System.out.println(this + "  queue is:");
-        while (p != null) {
-            System.out.println("            " + p);
-            p = p.next;
-        }
+        mBarriers.forEach(p -> System.out.println("    barrier " + p.arg1 + " when=" + p.when));
+        mStore.forEach(p -> System.out.println("            " + p));
+        mAsyncStore.forEach(p -> System.out.println("    async   " + p));
+        mInteractiveStore.forEach(p -> System.out.println("    interactive " + p));
+        mBackgroundStore.forEach(p -> System.out.println("    background  " + p));
     }
 }
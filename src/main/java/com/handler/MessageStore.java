@@ -0,0 +1,44 @@
+package com.handler;
+
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * {@link MessageQueueMini} 内部真正存放消息的数据结构。
+ * MessageQueueMini 负责加锁、唤醒、空闲处理等流程，而"按时间排序的消息集合"抽象成这个接口，可以替换不同的实现。
+ * <p>
+ * 所有方法都只会在持有 MessageQueueMini 锁的情况下被调用，实现类本身不需要做同步。
+ * 消息的先后顺序由 (when, seq) 决定，参见 {@link #before(MessageMini, MessageMini)}。
+ */
+public interface MessageStore {
+
+    //按 (when, seq) 的顺序放入一条消息；now 是入队时的当前时间，实现类可以用它判断消息是否已经到期
+    void add(MessageMini msg, long now);
+
+    //查看最早的一条消息，不移除；没有消息时返回null
+    MessageMini peek();
+
+    //取出最早的一条消息；没有消息时返回null
+    MessageMini poll();
+
+    //移除一条指定的消息，消息不在这里面时返回false
+    boolean remove(MessageMini msg);
+
+    int size();
+
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    //移除所有满足条件的消息，每移除一条就回调一次 removed
+    void removeIf(Predicate<MessageMini> filter, Consumer<MessageMini> removed);
+
+    //遍历所有消息，顺序不保证
+    void forEach(Consumer<MessageMini> action);
+
+    //a 是否排在 b 前面：先比较when，when相同再比较入队序号seq
+    static boolean before(MessageMini a, MessageMini b) {
+        return a.when < b.when || (a.when == b.when && a.seq < b.seq);
+    }
+}
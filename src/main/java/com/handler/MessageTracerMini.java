@@ -0,0 +1,228 @@
+package com.handler;
+
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 抽样记录消息从发送到回收的全过程，用 {@link LooperMini#setTracer(MessageTracerMini)} 打开：
+ * 哪个线程发送的、在队列里等了多久、handler处理了多久、回收花了多久。
+ * <p>
+ * ①开销：没有设置tracer时，发送和分发各只多读一个volatile字段；设置了之后，没抽中的消息也只多一次随机数。
+ * 抽中的消息在入队时打上标记，记下发送线程和时间，分发完回收之后，整条记录写进环形缓冲区。
+ * ②缓冲区：预先分配的数组，写满之后覆盖最旧的记录，写入不加锁，只有一次 getAndIncrement。
+ * 多个looper可以共用一个tracer。读取时跳过正在被覆盖的记录。
+ * ③导出：{@link #forEachSpan(SpanVisitor)} 直接遍历；{@link #writeTo(OutputStream)} 写成紧凑的二进制文件；
+ * {@link #commitJfrEvents()} 转成JFR的自定义事件 com.handler.MessageSpan，和其他JFR数据放在一起看。
+ * <p>
+ * 时间都是消息队列时钟上的纳秒，和 msg.when 同一个基准。
+ */
+public final class MessageTracerMini {
+    //二进制文件的开头和版本号
+    public static final int MAGIC = 0x4D534754; // "MSGT"
+    public static final int VERSION = 1;
+
+    //每条记录占的long数：what和target的哈希、发送线程、入队时间、when、开始分发、结束分发、回收完
+    private static final int FIELD_WHAT_TARGET = 0;
+    private static final int FIELD_THREAD = 1;
+    private static final int FIELD_ENQUEUE = 2;
+    private static final int FIELD_WHEN = 3;
+    private static final int FIELD_DISPATCH_START = 4;
+    private static final int FIELD_DISPATCH_END = 5;
+    private static final int FIELD_RECYCLED = 6;
+    private static final int STRIDE = 8;
+
+    //正在写的槽位的序号
+    private static final long WRITING = -1;
+
+    private final int mSampleEvery;
+    private final int mMask;
+    private final long[] mSpans;
+    //每个槽位里是第几条记录，WRITING表示正在写，读的时候前后各读一次，不一样就说明被覆盖了
+    private final AtomicLongArray mSeq;
+    private final AtomicLong mNext = new AtomicLong();
+
+    //遍历记录，不用为每条记录分配对象
+    public interface SpanVisitor {
+        void visit(int what, int targetHash, long enqueueThreadId, long enqueueNanos, long when,
+                   long dispatchStartNanos, long dispatchEndNanos, long recycledNanos);
+    }
+
+    //最多保留capacity条记录(向上取整到2的幂)，平均每sampleEvery条消息记录一条，为1时每条都记录
+    public MessageTracerMini(int capacity, int sampleEvery) {
+        if (capacity < 1 || capacity > 1 << 24) {
+            throw new IllegalArgumentException("capacity must be in [1, 2^24]: " + capacity);
+        }
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("sampleEvery must be at least 1: " + sampleEvery);
+        }
+        final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mSampleEvery = sampleEvery;
+        mMask = size - 1;
+        mSpans = new long[size * STRIDE];
+        mSeq = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSeq.set(i, WRITING);
+        }
+    }
+
+    //发送线程、入队时：决定这条消息要不要记录
+    void onEnqueue(MessageMini msg, long now) {
+        if (mSampleEvery == 1 || ThreadLocalRandom.current().nextInt(mSampleEvery) == 0) {
+            msg.flags |= MessageMini.FLAG_TRACED;
+            msg.traceEnqueueNanos = now;
+            msg.traceThreadId = Thread.currentThread().getId();
+        }
+    }
+
+    //looper线程：分发完一条打了标记的消息，回收它并写下整条记录
+    void recycleAndRecord(MessageMini msg, long dispatchStart, long dispatchEnd, ClockMini clock) {
+        final long whatTarget = ((long) msg.what << 32) | (System.identityHashCode(msg.target) & 0xFFFFFFFFL);
+        final long thread = msg.traceThreadId;
+        final long enqueue = msg.traceEnqueueNanos;
+        final long when = msg.when;
+        msg.recycleUnchecked();
+        final long recycled = clock.uptimeNanos();
+
+        final long seq = mNext.getAndIncrement();
+        final int slot = (int) seq & mMask;
+        mSeq.set(slot, WRITING);
+        //下面的普通写入不能跑到WRITING前面去
+        VarHandle.storeStoreFence();
+        final int base = slot * STRIDE;
+        mSpans[base + FIELD_WHAT_TARGET] = whatTarget;
+        mSpans[base + FIELD_THREAD] = thread;
+        mSpans[base + FIELD_ENQUEUE] = enqueue;
+        mSpans[base + FIELD_WHEN] = when;
+        mSpans[base + FIELD_DISPATCH_START] = dispatchStart;
+        mSpans[base + FIELD_DISPATCH_END] = dispatchEnd;
+        mSpans[base + FIELD_RECYCLED] = recycled;
+        mSeq.set(slot, seq);
+    }
+
+    //一共记录过多少条(包括已经被覆盖的)
+    public long getRecordedCount() {
+        return mNext.get();
+    }
+
+    //从旧到新遍历缓冲区里还在的记录，返回遍历了多少条。可以在任何线程调用，和写入同时进行也没问题
+    public int forEachSpan(SpanVisitor visitor) {
+        final long end = mNext.get();
+        final long start = Math.max(0, end - (mMask + 1));
+        int visited = 0;
+        for (long seq = start; seq < end; seq++) {
+            final int slot = (int) seq & mMask;
+            if (mSeq.get(slot) != seq) {
+                continue;
+            }
+            final int base = slot * STRIDE;
+            final long whatTarget = mSpans[base + FIELD_WHAT_TARGET];
+            final long thread = mSpans[base + FIELD_THREAD];
+            final long enqueue = mSpans[base + FIELD_ENQUEUE];
+            final long when = mSpans[base + FIELD_WHEN];
+            final long dispatchStart = mSpans[base + FIELD_DISPATCH_START];
+            final long dispatchEnd = mSpans[base + FIELD_DISPATCH_END];
+            final long recycled = mSpans[base + FIELD_RECYCLED];
+            //上面的普通读取不能跑到下面这次检查后面去
+            VarHandle.loadLoadFence();
+            if (mSeq.get(slot) != seq) {
+                //读的过程中被覆盖了
+                continue;
+            }
+            visitor.visit((int) (whatTarget >>> 32), (int) whatTarget, thread, enqueue, when,
+                    dispatchStart, dispatchEnd, recycled);
+            visited++;
+        }
+        return visited;
+    }
+
+    /**
+     * 写成二进制：MAGIC、VERSION(int)，记录条数(int)，然后每条记录
+     * what、targetHash(int)，发送线程、入队时间、when、开始分发、结束分发、回收完(long)，都是大端。返回写了多少条。
+     */
+    public int writeTo(OutputStream out) throws IOException {
+        final long[] buffer = new long[(mMask + 1) * STRIDE];
+        final int count = forEachSpan(new SpanVisitor() {
+            int mIndex;
+
+            @Override
+            public void visit(int what, int targetHash, long enqueueThreadId, long enqueueNanos, long when,
+                              long dispatchStartNanos, long dispatchEndNanos, long recycledNanos) {
+                final int base = mIndex++ * STRIDE;
+                buffer[base + FIELD_WHAT_TARGET] = ((long) what << 32) | (targetHash & 0xFFFFFFFFL);
+                buffer[base + FIELD_THREAD] = enqueueThreadId;
+                buffer[base + FIELD_ENQUEUE] = enqueueNanos;
+                buffer[base + FIELD_WHEN] = when;
+                buffer[base + FIELD_DISPATCH_START] = dispatchStartNanos;
+                buffer[base + FIELD_DISPATCH_END] = dispatchEndNanos;
+                buffer[base + FIELD_RECYCLED] = recycledNanos;
+            }
+        });
+        final DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            final int base = i * STRIDE;
+            for (int f = FIELD_WHAT_TARGET; f <= FIELD_RECYCLED; f++) {
+                data.writeLong(buffer[base + f]);
+            }
+        }
+        data.flush();
+        return count;
+    }
+
+    //把缓冲区里的记录提交成JFR事件；没有在录制、或者这个事件没有打开时什么也不做。返回提交了多少条
+    public int commitJfrEvents() {
+        if (!new SpanEvent().isEnabled()) {
+            return 0;
+        }
+        return forEachSpan((what, targetHash, enqueueThreadId, enqueueNanos, when, dispatchStart, dispatchEnd, recycled) -> {
+            final SpanEvent event = new SpanEvent();
+            event.what = what;
+            event.targetHash = targetHash;
+            event.enqueueThreadId = enqueueThreadId;
+            event.queueWait = dispatchStart - Math.max(when, enqueueNanos);
+            event.run = dispatchEnd - dispatchStart;
+            event.recycle = recycled - dispatchEnd;
+            event.commit();
+        });
+    }
+
+    @Name("com.handler.MessageSpan")
+    @Label("Message Span")
+    @Category("Handler")
+    static final class SpanEvent extends Event {
+        @Label("What")
+        int what;
+
+        @Label("Target Identity Hash")
+        int targetHash;
+
+        @Label("Enqueue Thread Id")
+        long enqueueThreadId;
+
+        @Label("Queue Wait")
+        @Timespan
+        long queueWait;
+
+        @Label("Handler Run")
+        @Timespan
+        long run;
+
+        @Label("Recycle")
+        @Timespan
+        long recycle;
+    }
+}
@@ -0,0 +1,145 @@
+package com.handler;
+
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 给发送频率极高、内容固定的消息用的环形队列，挂在一个handler上：
+ *     RingMessageQueueMini ring = new RingMessageQueueMini(handler, 4096);
+ *     ring.send(TICK, price, volume);
+ * <p>
+ * 每条消息只是环里的一条记录(what, arg1, arg2, when)，存在预先分配好的数组里，不创建MessageMini、也不进消息队列，
+ * 所以再高的发送频率也没有GC压力，多个生产者之间也只有一次CAS。
+ * <p>
+ * 环从空变成非空时，往handler的looper上post一个任务，由它在looper线程上一批批地取出记录，
+ * 填进同一个MessageMini里交给 handler.dispatchMessage()，handleMessage() 的用法和普通消息一样。
+ * 这个消息在handleMessage()返回之后就会被下一条记录覆盖，不要留着它，也不要回收它。
+ * 一批处理完还有剩下的，就重新post，让looper队列里的其他消息也有机会处理。
+ * <p>
+ * 环满了 send() 返回false。记录都是立即处理的，不支持延迟发送和同步屏障，需要这些功能的消息还是用handler发。
+ */
+public final class RingMessageQueueMini implements Runnable {
+    //looper每次最多连续处理多少条记录
+    private static final int DRAIN_BATCH = 256;
+
+    private final HandlerMini mHandler;
+    private final ClockMini mClock;
+    private final int mMask;
+
+    //记录的内容，按下标平铺成几个数组
+    private final int[] mWhat;
+    private final int[] mArg1;
+    private final int[] mArg2;
+    private final long[] mWhen;
+    //每个格子的序号：等于pos时生产者可以写入，等于pos+1时消费者可以读取，读完改成pos+capacity留给下一圈
+    private final AtomicLongArray mSequence;
+
+    //下一个要写入的位置，生产者用CAS抢
+    private final AtomicLong mTail = new AtomicLong();
+    //下一个要读取的位置，只有looper线程会读写
+    private long mHead;
+
+    //是否已经post了取记录的任务，避免重复post
+    private final AtomicBoolean mDrainPending = new AtomicBoolean();
+    //交给handler的消息，每条记录都复用它
+    private final MessageMini mRecord = new MessageMini();
+
+    //capacity会向上取整到2的幂
+    public RingMessageQueueMini(HandlerMini handler, int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be in [1, 2^30]: " + capacity);
+        }
+        final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mHandler = handler;
+        mClock = handler.getLooper().getQueue().mClock;
+        mMask = size - 1;
+        mWhat = new int[size];
+        mArg1 = new int[size];
+        mArg2 = new int[size];
+        mWhen = new long[size];
+        mSequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequence.set(i, i);
+        }
+        mRecord.target = handler;
+        //用户不能回收它
+        mRecord.markInUse();
+    }
+
+    public boolean send(int what) {
+        return send(what, 0, 0);
+    }
+
+    //放进环里，环满了返回false
+    public boolean send(int what, int arg1, int arg2) {
+        long pos;
+        int index;
+        for (; ; ) {
+            pos = mTail.get();
+            index = (int) pos & mMask;
+            final long seq = mSequence.get(index);
+            if (seq == pos) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (seq < pos) {
+                //这个格子上一圈的记录还没被读走，环满了
+                return false;
+            }
+            //其他生产者已经抢走了这个位置，重新读mTail
+        }
+        mWhat[index] = what;
+        mArg1[index] = arg1;
+        mArg2[index] = arg2;
+        mWhen[index] = mClock.uptimeNanos();
+        //写序号之前的普通写入，对读到这个序号的looper线程都可见
+        mSequence.set(index, pos + 1);
+        scheduleDrain();
+        return true;
+    }
+
+    //环里还有多少条记录没处理，只是一个近似值
+    public int size() {
+        final long size = mTail.get() - mHead;
+        return (int) Math.max(0, Math.min(size, mMask + 1));
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    private void scheduleDrain() {
+        if (mDrainPending.compareAndSet(false, true)) {
+            mHandler.post(this);
+        }
+    }
+
+    //在looper线程上取记录来处理
+    @Override
+    public void run() {
+        //先清标记再取：取完之后才写进来的记录，它的生产者会重新post
+        mDrainPending.set(false);
+        final MessageMini msg = mRecord;
+        for (int i = 0; i < DRAIN_BATCH; i++) {
+            final long pos = mHead;
+            final int index = (int) pos & mMask;
+            if (mSequence.get(index) != pos + 1) {
+                return;
+            }
+            msg.what = mWhat[index];
+            msg.arg1 = mArg1[index];
+            msg.arg2 = mArg2[index];
+            msg.when = mWhen[index];
+            //格子已经读完了，留给下一圈的生产者
+            mSequence.lazySet(index, pos + mMask + 1);
+            mHead = pos + 1;
+            mHandler.dispatchMessage(msg);
+        }
+        //这一批处理完了还有，重新排队
+        if (mSequence.get((int) mHead & mMask) == mHead + 1) {
+            scheduleDrain();
+        }
+    }
+}
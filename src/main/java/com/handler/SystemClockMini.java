@@ -0,0 +1,27 @@
+package com.handler;
+
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对应源码里的 SystemClock：基于 System.nanoTime() 的开机时间(uptime)。
+ * 和 System.currentTimeMillis() 不同，它不会因为用户改时间、NTP校时而跳变，适合用来计算延迟消息的发送时间。
+ */
+public final class SystemClockMini implements ClockMini {
+    public static final SystemClockMini INSTANCE = new SystemClockMini();
+
+    //类加载时的时间点作为起点；减1是为了让uptime永远大于0
+    private static final long ORIGIN = System.nanoTime() - 1;
+
+    private SystemClockMini() {
+    }
+
+    public static long uptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(INSTANCE.uptimeNanos());
+    }
+
+    @Override
+    public long uptimeNanos() {
+        return System.nanoTime() - ORIGIN;
+    }
+}
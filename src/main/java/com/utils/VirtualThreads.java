@@ -0,0 +1,106 @@
+package com.utils;
+
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 创建虚拟线程的小工具。
+ * 项目按JDK 17编译，不能直接写 Thread.ofVirtual()，所以这里用反射去找；
+ * 运行在JDK 21及以上时创建的是虚拟线程，找不到(或者JDK 19/20没有打开预览特性)时退化成普通的守护线程，调用方不用关心。
+ */
+public final class VirtualThreads {
+    //Thread.ofVirtual()、Builder.name(prefix, start)、Builder.name(name)、Builder.factory()、Builder.start(task)，不支持虚拟线程时都为null
+    private static final MethodHandle OF_VIRTUAL;
+    private static final MethodHandle NAME_COUNTER;
+    private static final MethodHandle NAME;
+    private static final MethodHandle FACTORY;
+    private static final MethodHandle START;
+    //Thread.isVirtual()，不支持虚拟线程时为null
+    private static final MethodHandle IS_VIRTUAL;
+
+    static {
+        MethodHandle ofVirtual = null;
+        MethodHandle nameCounter = null;
+        MethodHandle name = null;
+        MethodHandle factory = null;
+        MethodHandle start = null;
+        MethodHandle isVirtual = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Class<?> ofVirtualBuilder = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(ofVirtualBuilder));
+            nameCounter = lookup.findVirtual(ofVirtualBuilder, "name", MethodType.methodType(ofVirtualBuilder, String.class, long.class));
+            name = lookup.findVirtual(ofVirtualBuilder, "name", MethodType.methodType(ofVirtualBuilder, String.class));
+            factory = lookup.findVirtual(builder, "factory", MethodType.methodType(ThreadFactory.class));
+            start = lookup.findVirtual(builder, "start", MethodType.methodType(Thread.class, Runnable.class));
+            isVirtual = lookup.findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+            //JDK 19/20 上虚拟线程是预览特性，没打开时调用会抛异常，提前试一次
+            ofVirtual.invoke();
+        } catch (Throwable t) {
+            ofVirtual = null;
+            isVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME_COUNTER = nameCounter;
+        NAME = name;
+        FACTORY = factory;
+        START = start;
+        IS_VIRTUAL = isVirtual;
+    }
+
+    private VirtualThreads() {
+    }
+
+    //当前JDK是否能创建虚拟线程
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    public static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invoke(thread);
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    //创建的线程依次命名为 prefix0、prefix1...；不支持虚拟线程时创建守护线程
+    public static ThreadFactory factory(String prefix) {
+        if (OF_VIRTUAL != null) {
+            try {
+                return (ThreadFactory) FACTORY.invoke(NAME_COUNTER.invoke(OF_VIRTUAL.invoke(), prefix, 0L));
+            } catch (Throwable t) {
+                throw new IllegalStateException("Can't create virtual thread factory", t);
+            }
+        }
+        AtomicLong count = new AtomicLong();
+        return r -> {
+            Thread t = new Thread(r, prefix + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    //在一个新的(虚拟)线程上运行task
+    public static Thread start(String name, Runnable task) {
+        if (OF_VIRTUAL != null) {
+            try {
+                return (Thread) START.invoke(NAME.invoke(OF_VIRTUAL.invoke(), name), task);
+            } catch (Throwable e) {
+                throw new IllegalStateException("Can't start virtual thread", e);
+            }
+        }
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+}
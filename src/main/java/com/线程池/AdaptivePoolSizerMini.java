@@ -0,0 +1,134 @@
+package com.线程池;
+
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link ThreadPoolExecutorMini#enableAdaptiveSizing} 打开之后，在后台按排队时间和CPU使用率调整corePoolSize，
+ * 范围和目标都在 {@link ThreadPollParameter} 里。
+ * <p>
+ * ①排队时间：不给任务打时间戳(那样要把任务包一层，remove()、shutdownNow()就认不出原来的任务了)，
+ * 而是用Little定律估算：平均排队时间 ≈ 队列里的任务数 / 完成任务的速度，两次采样之间算一次。
+ * 队列不空、这段时间却一个任务都没完成，就当排队时间是无穷大。
+ * ②调大：排队时间超过目标，并且进程CPU使用率低于上限(拿不到CPU使用率时不看它)，连续 {@link #GROW_AFTER} 次就加25%，至少加1个。
+ * CPU已经满了，再加线程也只是让任务互相抢CPU，所以不加。
+ * ③调小：排队时间低于目标的一半，连续 {@link #SHRINK_AFTER} 次才减1个。在两者之间时不动，连续计数清零。
+ * 加得快、减得慢，中间还有一段不动的区间，负载在目标附近抖动时线程数不会跟着来回变。
+ * <p>
+ * 采样间隔是目标排队时间的两倍，限制在10毫秒到1秒之间。corePoolSize减小之后，多出来的线程空闲时按keepAliveTime退出。
+ * 只有会排队的队列(LinkedBlockingQueue、ArrayBlockingQueue)才量得出排队时间，SynchronousQueue不会触发调整。
+ */
+final class AdaptivePoolSizerMini implements Runnable {
+    //连续几次排队太久才加线程
+    static final int GROW_AFTER = 2;
+    //连续几次排队很短才减线程
+    static final int SHRINK_AFTER = 5;
+
+    private static final long MIN_PERIOD = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+    //能拿到进程CPU使用率时不为null
+    private static final com.sun.management.OperatingSystemMXBean OS_BEAN;
+
+    static {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        OS_BEAN = bean instanceof com.sun.management.OperatingSystemMXBean ?
+                (com.sun.management.OperatingSystemMXBean) bean : null;
+    }
+
+    private final ThreadPoolExecutorMini executor;
+    private final ThreadPollParameter parameter;
+
+    //下面几个只有采样线程会读写
+    private int highStreak;
+    private int lowStreak;
+    private long lastCompleted;
+    private long lastSampleNanos;
+
+    AdaptivePoolSizerMini(ThreadPoolExecutorMini executor, ThreadPollParameter parameter) {
+        this.executor = executor;
+        this.parameter = parameter;
+    }
+
+    //采样线程：直到线程池关闭、关掉自适应、或者被新的一次enableAdaptiveSizing()替换
+    @Override
+    public void run() {
+        lastCompleted = executor.getCompletedTaskCount();
+        lastSampleNanos = System.nanoTime();
+        for (; ; ) {
+            LockSupport.parkNanos(period(parameter.getTargetQueueWait()));
+            if (!executor.isCurrentSizer(this) || executor.isShutdown())
+                return;
+            final long now = System.nanoTime();
+            final long completed = executor.getCompletedTaskCount();
+            final int current = parameter.getCorePoolSize();
+            int next = decide(current, executor.getQueue().size(), completed - lastCompleted,
+                    now - lastSampleNanos, processCpuLoad());
+            lastCompleted = completed;
+            lastSampleNanos = now;
+            //期间可能有人调小了maximumPoolSize
+            next = Math.min(next, parameter.getMaximumPoolSize());
+            if (next != current) {
+                try {
+                    executor.setCorePoolSize(next);
+                } catch (IllegalArgumentException ignore) {
+                    // 和setMaximumPoolSize()撞上了，下次再调
+                }
+            }
+        }
+    }
+
+    /**
+     * 根据一次采样算出新的corePoolSize，没有变化时返回current。
+     *
+     * @param queued         队列里的任务数
+     * @param completedDelta 上次采样之后完成的任务数
+     * @param elapsedNanos   距离上次采样的时间
+     * @param cpuLoad        进程CPU使用率(0~1)，拿不到时为负数
+     */
+    int decide(int current, int queued, long completedDelta, long elapsedNanos, double cpuLoad) {
+        final int min = parameter.getMinAdaptivePoolSize();
+        final int max = parameter.getMaxAdaptivePoolSize();
+        final long target = parameter.getTargetQueueWait();
+        //Little定律：排队时间 = 排队的任务数 / 完成速度
+        final double wait = queued == 0 ? 0 :
+                completedDelta <= 0 ? Double.POSITIVE_INFINITY :
+                        (double) queued * elapsedNanos / completedDelta;
+        final boolean cpuSaturated = cpuLoad >= 0 && cpuLoad >= parameter.getMaxCpuUtilization();
+
+        if (wait > target && !cpuSaturated && current < max) {
+            lowStreak = 0;
+            if (++highStreak >= GROW_AFTER) {
+                highStreak = 0;
+                return Math.min(max, current + Math.max(1, current / 4));
+            }
+        } else if (wait < target / 2.0 && current > min) {
+            highStreak = 0;
+            if (++lowStreak >= SHRINK_AFTER) {
+                lowStreak = 0;
+                return current - 1;
+            }
+        } else {
+            highStreak = 0;
+            lowStreak = 0;
+        }
+        //不在范围里(比如范围刚改过)，先拉回来
+        return Math.max(min, Math.min(max, current));
+    }
+
+    //采样间隔：目标排队时间的两倍，限制在[MIN_PERIOD, MAX_PERIOD]
+    static long period(long targetQueueWait) {
+        return Math.max(MIN_PERIOD, Math.min(MAX_PERIOD / 2, targetQueueWait) * 2);
+    }
+
+    //进程的CPU使用率(0~1)，拿不到时返回-1
+    static double processCpuLoad() {
+        if (OS_BEAN == null)
+            return -1;
+        final double load = OS_BEAN.getProcessCpuLoad();
+        return Double.isNaN(load) ? -1 : load;
+    }
+}
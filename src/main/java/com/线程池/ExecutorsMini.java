@@ -1,5 +1,7 @@
 package com.线程池;
 
+import com.utils.VirtualThreads;
+
 import java.util.concurrent.*;
 
 public class ExecutorsMini {
@@ -8,8 +10,8 @@ public class ExecutorsMini {
     /**
      * 创建一个核心线程数和最大线程数都是1
      */
-    public static ThreadPoolExecutor newSingleThreadExecutor() {
-        return new ThreadPoolExecutor(1, 1,
+    public static ThreadPoolExecutorMini newSingleThreadExecutor() {
+        return new ThreadPoolExecutorMini(1, 1,
                 0L, TimeUnit.MILLISECONDS,
                 new LinkedBlockingQueue<>());
     }
@@ -20,10 +22,44 @@ public class ExecutorsMini {
      * N ：核心线程数 & 最大线程数
      */
     public static ExecutorService newFixedThreadPool(int nThreads) {
-        return new ThreadPoolExecutor(nThreads, nThreads,
+        return new ThreadPoolExecutorMini(nThreads, nThreads,
                 0L, TimeUnit.MILLISECONDS,
                 new LinkedBlockingQueue<Runnable>());
     }
 
 
+    /**
+     * 创建一个work stealing模式的线程池，固定parallelism个线程。
+     * 适合任务里还会再提交小任务的场景：子任务放在提交它的线程自己的队列里，空闲线程从别的线程那里偷任务，
+     * 不会所有线程都去抢同一个队列。
+     */
+    public static ExecutorService newWorkStealingPool(int parallelism) {
+        return new ThreadPoolExecutorMini(parallelism, parallelism,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                Executors.defaultThreadFactory(), new ThreadPoolExecutorMini.AbortPolicy(), true);
+    }
+
+    //线程数等于CPU核数
+    public static ExecutorService newWorkStealingPool() {
+        return newWorkStealingPool(Runtime.getRuntime().availableProcessors());
+    }
+
+
+    /**
+     * 每个任务一个虚拟线程，适合大量阻塞在IO上的任务(比如 {@link MyTask} 这种)。JDK 21以下退化成每个任务一个守护线程。
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        return newVirtualThreadPerTaskExecutor(0);
+    }
+
+    /**
+     * 每个任务一个虚拟线程，最多同时执行maxConcurrency个任务，0表示不限制。
+     * 超过的任务排队等着，不占线程，提交任务的线程也不会阻塞，用来保护下游(连接数、文件句柄之类)。
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor(int maxConcurrency) {
+        return new ThreadPerTaskExecutorMini(VirtualThreads.factory("virtual-task-"), maxConcurrency);
+    }
+
+
 }
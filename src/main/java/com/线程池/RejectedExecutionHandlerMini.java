@@ -0,0 +1,11 @@
+package com.线程池;
+
+/**
+ * {@link ThreadPoolExecutorMini} 没法执行一个任务时(线程数到了最大、队列也满了，或者线程池已经关闭)怎么办。
+ * 几种常用的策略见 ThreadPoolExecutorMini 里的 AbortPolicy、CallerRunsPolicy、DiscardPolicy、DiscardOldestPolicy。
+ */
+public interface RejectedExecutionHandlerMini {
+
+    //可以抛出 RejectedExecutionException，异常会传给execute()的调用者
+    void rejectedExecution(Runnable r, ThreadPoolExecutorMini executor);
+}
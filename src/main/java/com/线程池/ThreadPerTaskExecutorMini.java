@@ -0,0 +1,255 @@
+package com.线程池;
+
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.线程池.ThreadPoolInfoModel.*;
+
+/**
+ * 每个任务一个新线程的执行器，配合 {@link com.utils.VirtualThreads#factory(String)} 就是一个任务一个虚拟线程，
+ * 适合大量阻塞在IO上的任务：线程不复用，阻塞的虚拟线程不占用平台线程。
+ * 关闭、等待终止的用法和 {@link ThreadPoolExecutorMini} 一样。
+ * <p>
+ * 可以限制同时执行的任务数：超过限制的任务放进一个等待队列，不会为它创建线程，提交任务的线程也不会被阻塞；
+ * 有任务执行完时，由执行它的线程把许可直接交给等待队列里的下一个任务。
+ * 所以不管有多少任务在等，都没有线程(包括虚拟线程底下的平台线程)阻塞在许可上。
+ * <p>
+ * 状态和"提交了还没执行完的任务数"(包括等待队列里的)一起放在 {@link ThreadPoolInfoModel} 里。
+ */
+public class ThreadPerTaskExecutorMini extends AbstractExecutorService {
+
+    private final ThreadPoolInfoModel threadPoolInfo = new ThreadPoolInfoModel();
+
+    private final ThreadFactory threadFactory;
+
+    //同时执行的任务数的许可，只用 tryAcquire() 和 release()，从不阻塞；不限制时为null
+    private final Semaphore permits;
+    private final int maxConcurrency;
+
+    //拿不到许可的任务在这里等
+    private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<Runnable>();
+
+    //正在执行任务的线程，shutdownNow()要中断它们
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+    //awaitTermination()在这上面等
+    private final CountDownLatch termination = new CountDownLatch(1);
+
+
+    public ThreadPerTaskExecutorMini(ThreadFactory threadFactory) {
+        this(threadFactory, 0);
+    }
+
+    //maxConcurrency为0时不限制同时执行的任务数
+    public ThreadPerTaskExecutorMini(ThreadFactory threadFactory, int maxConcurrency) {
+        if (maxConcurrency < 0)
+            throw new IllegalArgumentException();
+        if (threadFactory == null)
+            throw new NullPointerException();
+        this.threadFactory = threadFactory;
+        this.maxConcurrency = maxConcurrency;
+        this.permits = maxConcurrency == 0 ? null : new Semaphore(maxConcurrency);
+    }
+
+
+    @Override
+    public void execute(@NotNull Runnable task) {
+        if (task == null)
+            throw new NullPointerException();
+        //检查状态和增加任务数是同一次CAS，关闭之后不会再有任务混进来
+        for (; ; ) {
+            int c = threadPoolInfo.get();
+            if (!isRunning(c))
+                throw new RejectedExecutionException("Task " + task + " rejected from " + this);
+            if (getWorkerCount(c) >= CAPACITY)
+                throw new RejectedExecutionException("Too many unfinished tasks in " + this);
+            if (threadPoolInfo.compareAndIncrementWorkerCount(c))
+                break;
+        }
+        if (permits == null) {
+            RejectedExecutionException e = tryStart(task);
+            if (e != null)
+                throw e;
+        } else {
+            waiting.offer(task);
+            startWaiting(task);
+        }
+    }
+
+    /**
+     * 有许可就把等待队列里的任务启动起来。提交任务之后(submitted是刚提交的任务)、有任务执行完之后(submitted为null)都调用它。
+     * 先放任务再拿许可，和执行完先还许可再看队列，顺序正好相反，所以两边至少有一边能启动这个任务，不会有任务一直等下去。
+     * <p>
+     * 启动的多半是别人提交的任务，启动失败不能抛给这里的调用者：执行完任务的线程抛出去就不会把任务数减一了，
+     * 提交任务的线程会以为是自己的任务被拒绝了。所以只有submitted启动失败时才抛出，其余的撤销之后报告给当前线程的
+     * UncaughtExceptionHandler，接着启动下一个。
+     */
+    private void startWaiting(Runnable submitted) {
+        RejectedExecutionException rejected = null;
+        while (!waiting.isEmpty()) {
+            if (!permits.tryAcquire())
+                break; // 正在执行的任务执行完会接着启动
+            Runnable task = waiting.poll();
+            if (task == null) {
+                //被别的线程抢先取走了，还回许可再看看
+                permits.release();
+                continue;
+            }
+            RejectedExecutionException e = tryStart(task);
+            if (e == null)
+                continue;
+            if (task == submitted) {
+                rejected = e;
+            } else {
+                Thread t = Thread.currentThread();
+                t.getUncaughtExceptionHandler().uncaughtException(t, e);
+            }
+        }
+        if (rejected != null)
+            throw rejected;
+    }
+
+    /**
+     * 为任务创建一个新线程。创建失败时撤销这个任务(还回许可、任务数减一)，返回失败原因。
+     * 还回的许可留给调用者接着用，这里不去启动等待的任务，免得每失败一次就多递归一层
+     */
+    private RejectedExecutionException tryStart(Runnable task) {
+        RejectedExecutionException rejected;
+        try {
+            Thread t = threadFactory.newThread(() -> runTask(task));
+            if (t == null)
+                throw new RejectedExecutionException("ThreadFactory returned null for " + task);
+            t.start();
+            return null;
+        } catch (RejectedExecutionException e) {
+            rejected = e;
+        } catch (Throwable e) {
+            rejected = new RejectedExecutionException("Can't start thread for " + task, e);
+        }
+        if (permits != null)
+            permits.release();
+        threadPoolInfo.decrementWorkerCount();
+        tryTerminate();
+        return rejected;
+    }
+
+    private void runTask(Runnable task) {
+        final Thread t = Thread.currentThread();
+        threads.add(t);
+        try {
+            //先登记再检查状态；shutdownNow()是先改状态再中断登记了的线程，两边至少有一边能看到对方
+            if (getRunState(threadPoolInfo.get()) >= STOP)
+                t.interrupt();
+            task.run();
+        } finally {
+            threads.remove(t);
+            taskDone();
+        }
+    }
+
+    //一个任务执行完了：任务数减一，还回许可，交给下一个等待的任务。
+    //先把自己的账结清，后面启动别的任务不管出什么事，都不会让这个任务一直算在任务数里、执行器终止不了
+    private void taskDone() {
+        threadPoolInfo.decrementWorkerCount();
+        tryTerminate();
+        if (permits != null) {
+            permits.release();
+            startWaiting(null);
+        }
+    }
+
+    //已经关闭并且所有任务都结束了，就终止
+    private void tryTerminate() {
+        for (; ; ) {
+            int c = threadPoolInfo.get();
+            if (isRunning(c) || getRunState(c) >= TERMINATED || getWorkerCount(c) != 0)
+                return;
+            if (threadPoolInfo.compareAndSet(c, ctlOf(TERMINATED, 0))) {
+                termination.countDown();
+                return;
+            }
+        }
+    }
+
+    //不再接收新任务，已经提交的任务(包括等待许可的)照常执行完
+    @Override
+    public void shutdown() {
+        threadPoolInfo.advanceRunState(SHUTDOWN);
+        tryTerminate();
+    }
+
+    //不再接收新任务，中断正在执行的任务，还在等待许可的任务取出来返回
+    @NotNull
+    @Override
+    public List<Runnable> shutdownNow() {
+        threadPoolInfo.advanceRunState(STOP);
+        //先取出等待的任务再中断：被中断的任务结束时会把许可交给等待队列里的下一个任务
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        Runnable r;
+        while ((r = waiting.poll()) != null) {
+            tasks.add(r);
+            threadPoolInfo.decrementWorkerCount();
+        }
+        for (Thread t : threads)
+            t.interrupt();
+        tryTerminate();
+        return tasks;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return !isRunning(threadPoolInfo.get());
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return getRunState(threadPoolInfo.get()) >= TERMINATED;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        return termination.await(timeout, unit);
+    }
+
+    //同时执行的任务数上限，0表示不限制
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    //正在执行的任务数，只是一个近似值
+    public int getActiveCount() {
+        return threads.size();
+    }
+
+    //在等许可的任务数，只是一个近似值
+    public int getWaitingCount() {
+        return waiting.size();
+    }
+
+    @Override
+    public String toString() {
+        int c = threadPoolInfo.get();
+        String runState =
+                isRunning(c) ? "Running" :
+                        getRunState(c) >= TERMINATED ? "Terminated" :
+                                "Shutting down";
+        return super.toString() +
+                "[" + runState +
+                ", max concurrency = " + (maxConcurrency == 0 ? "unbounded" : String.valueOf(maxConcurrency)) +
+                ", active tasks = " + getActiveCount() +
+                ", waiting tasks = " + getWaitingCount() +
+                "]";
+    }
+}
@@ -1,6 +1,6 @@
 package com.线程池;
 
-import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
 
 //线程池参数
 public class ThreadPollParameter {
@@ -25,25 +25,91 @@ public class ThreadPollParameter {
     }
 
 
-    //    /**
-//     * Handler called when saturated or shutdown in execute.
-//     */
-//    private volatile RejectedExecutionHandler handler;
-//
-//    /**
-//     * Timeout in nanoseconds for idle threads waiting for work.
-//     * Threads use this timeout when there are more than corePoolSize
-//     * present or if allowCoreThreadTimeOut. Otherwise they wait
-//     * forever for new work.
-//     */
-//    private volatile long keepAliveTime;
-//
-//    /**
-//     * If false (default), core threads stay alive even when idle.
-//     * If true, core threads use keepAliveTime to time out waiting
-//     * for work.
-//     */
-//    private volatile boolean allowCoreThreadTimeOut;
+    //线程池满了、或者已经关闭时，execute()交给它处理
+    private volatile RejectedExecutionHandlerMini handler;
 
+    //空闲线程等任务的超时时间，单位纳秒。线程数多于corePoolSize，或者allowCoreThreadTimeOut时才会超时退出，否则一直等
+    private volatile long keepAliveTime;
+
+    //为false(默认)时，核心线程空闲也不退出；为true时，核心线程也按keepAliveTime超时退出
+    private volatile boolean allowCoreThreadTimeOut;
+
+    //所有的工作线程都由它创建
+    private volatile ThreadFactory threadFactory;
+
+    public RejectedExecutionHandlerMini getHandler() {
+        return handler;
+    }
+
+    public void setHandler(RejectedExecutionHandlerMini handler) {
+        this.handler = handler;
+    }
+
+    public long getKeepAliveTime() {
+        return keepAliveTime;
+    }
+
+    public void setKeepAliveTime(long keepAliveTime) {
+        this.keepAliveTime = keepAliveTime;
+    }
+
+    public boolean isAllowCoreThreadTimeOut() {
+        return allowCoreThreadTimeOut;
+    }
+
+    public void setAllowCoreThreadTimeOut(boolean allowCoreThreadTimeOut) {
+        this.allowCoreThreadTimeOut = allowCoreThreadTimeOut;
+    }
+
+    public ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+
+    //自适应线程数(见 AdaptivePoolSizerMini)：corePoolSize在[minAdaptivePoolSize, maxAdaptivePoolSize]之间调整
+    private volatile int minAdaptivePoolSize;
+    private volatile int maxAdaptivePoolSize;
+
+    //自适应线程数：希望任务平均排队多久，单位纳秒。超过它就加线程，低于它的一半才减线程
+    private volatile long targetQueueWait;
+
+    //自适应线程数：进程CPU使用率(0~1)到了这个值就不再加线程
+    private volatile double maxCpuUtilization;
+
+    public int getMinAdaptivePoolSize() {
+        return minAdaptivePoolSize;
+    }
+
+    public void setMinAdaptivePoolSize(int minAdaptivePoolSize) {
+        this.minAdaptivePoolSize = minAdaptivePoolSize;
+    }
+
+    public int getMaxAdaptivePoolSize() {
+        return maxAdaptivePoolSize;
+    }
+
+    public void setMaxAdaptivePoolSize(int maxAdaptivePoolSize) {
+        this.maxAdaptivePoolSize = maxAdaptivePoolSize;
+    }
+
+    public long getTargetQueueWait() {
+        return targetQueueWait;
+    }
+
+    public void setTargetQueueWait(long targetQueueWait) {
+        this.targetQueueWait = targetQueueWait;
+    }
+
+    public double getMaxCpuUtilization() {
+        return maxCpuUtilization;
+    }
+
+    public void setMaxCpuUtilization(double maxCpuUtilization) {
+        this.maxCpuUtilization = maxCpuUtilization;
+    }
 
 }
@@ -1,16 +1,36 @@
 package com.线程池;
 
 
+import com.utils.VirtualThreads;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.HashSet;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.线程池.ThreadPoolInfoModel.*;
 
-public class ThreadPoolExecutorMini {
+/**
+ * 源码里的ThreadPoolExecutor：线程池的状态和工作线程数量放在 {@link ThreadPoolInfoModel} 里，
+ * 各种参数放在 {@link ThreadPollParameter} 里，任务队列由构造时传入的 BlockingQueue 决定：
+ * 有界的ArrayBlockingQueue、无界的LinkedBlockingQueue、直接交给线程的SynchronousQueue都可以。
+ * <p>
+ * 另外还有一种work stealing模式：每个工作线程有自己的任务队列 {@link WorkStealingDequeMini}，
+ * 工作线程自己提交的任务(比如任务里再拆出来的子任务)放进自己的队列，不碰共享的workQueue；
+ * 其他线程提交的任务还是先进workQueue。工作线程没事干时，先看自己的队列，再看workQueue，最后去偷别的线程的。
+ */
+public class ThreadPoolExecutorMini extends AbstractExecutorService {
 
     /**
      * 用一个整数，控制线程池的状态；而线程池的状态，由两个信息拼在一起；分别是
@@ -21,18 +41,80 @@ public class ThreadPoolExecutorMini {
 
     private final ThreadPollParameter pollParameter = new ThreadPollParameter();
 
+    //任务队列：核心线程都在忙时，新任务先放到这里排队
+    private final BlockingQueue<Runnable> workQueue;
 
-    //包含池中所有工作线程的集合
-    private final HashSet<Worker> workers = new HashSet<Worker>();
+    //关闭、终止线程池时持有它，避免几个线程同时改状态、中断线程；工作线程的创建和退出不用它
+    private final ReentrantLock mainLock = new ReentrantLock();
+
+    //awaitTermination()在这上面等
+    private final Condition termination = mainLock.newCondition();
+
+    //包含池中所有工作线程的集合，登记和删除都不加锁
+    private final WorkerRegistryMini workers = new WorkerRegistryMini();
     //跟踪达到的最大池大小。
-    private int largestPoolSize;
+    private final AtomicInteger largestPoolSize = new AtomicInteger();
+    //已经退出的工作线程一共完成了多少个任务，还在的工作线程各自记在Worker里
+    private final LongAdder completedTaskCount = new LongAdder();
+
+    //默认的拒绝策略：抛出异常
+    private static final RejectedExecutionHandlerMini defaultHandler = new AbortPolicy();
+
+    //是否是work stealing模式
+    private final boolean workStealing;
+    //当前线程是这个线程池的哪个工作线程，只在work stealing模式下设置
+    private final ThreadLocal<Worker> currentWorker = new ThreadLocal<Worker>();
+    //正在等任务的工作线程数，有的话，放进任务之后要叫醒一个来拿
+    private final AtomicInteger idleWorkers = new AtomicInteger();
+    //work stealing模式下空闲线程等在这上面，而不是等在workQueue上：来了任务就release()叫醒一个。
+    //单独用一个信号量，workQueue里就只有用户的任务，不会占容量、不会算进getQueue().size()，也不会被拒绝策略丢掉
+    private final Semaphore wakeups = new Semaphore(0);
+    //自适应线程数的采样任务，没打开时为null
+    private volatile AdaptivePoolSizerMini sizer;
+
+
+    public ThreadPoolExecutorMini(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
+                                  BlockingQueue<Runnable> workQueue) {
+        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue,
+                Executors.defaultThreadFactory(), defaultHandler);
+    }
+
+    public ThreadPoolExecutorMini(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
+                                  BlockingQueue<Runnable> workQueue, ThreadFactory threadFactory,
+                                  RejectedExecutionHandlerMini handler) {
+        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory, handler, false);
+    }
+
+    //workStealing为true时是work stealing模式，这时workQueue只用来接收线程池外面提交的任务。
+    //空闲线程不等在workQueue上，所以SynchronousQueue这种直接交给等待线程的队列在这个模式下用不了
+    public ThreadPoolExecutorMini(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
+                                  BlockingQueue<Runnable> workQueue, ThreadFactory threadFactory,
+                                  RejectedExecutionHandlerMini handler, boolean workStealing) {
+        if (corePoolSize < 0 || maximumPoolSize <= 0 || maximumPoolSize < corePoolSize || keepAliveTime < 0)
+            throw new IllegalArgumentException();
+        if (workQueue == null || threadFactory == null || handler == null)
+            throw new NullPointerException();
+        this.workQueue = workQueue;
+        this.workStealing = workStealing;
+        pollParameter.setCorePoolSize(corePoolSize);
+        pollParameter.setMaximumPoolSize(maximumPoolSize);
+        pollParameter.setKeepAliveTime(unit.toNanos(keepAliveTime));
+        pollParameter.setThreadFactory(threadFactory);
+        pollParameter.setHandler(handler);
+    }
 
 
     /**
      * 首先，看最最重要的一个方法
      * 向线程池中添加任务，并按照一定的规则执行；
      */
+    @Override
     public void execute(@NotNull Runnable task) {
+        if (task == null)
+            throw new NullPointerException();
+        //工作线程自己提交的任务，放进它自己的队列
+        if (workStealing && pushLocal(task))
+            return;
         /*
          * 主要过程有三步:
          * Step1: 如果正在运行的线程少于corePoolSize，那么将会创建一个新的线程
@@ -45,14 +127,17 @@ public class ThreadPoolExecutorMini {
                 return;
             state = threadPoolInfo.get();
         }
-        if (isRunning(c) && workQueue.offer(task)) {
-            int recheck = ctl.get();
+        if (isRunning(state) && workQueue.offer(task)) {
+            //放进队列之后再检查一次：线程池可能刚好关闭了，或者所有线程刚好都退出了
+            int recheck = threadPoolInfo.get();
             if (!isRunning(recheck) && remove(task))
                 reject(task);
-            else if (workerCountOf(recheck) == 0)
+            else if (getWorkerCount(recheck) == 0)
                 addWorker(null, false);
+            else if (workStealing)
+                signalIdleWorker();
         } else if (!addWorker(task, false))
-            reject(command);
+            reject(task);
     }
 
 
@@ -63,6 +148,8 @@ public class ThreadPoolExecutorMini {
      * 如果线程创建失败，要么是由于线程工厂返回 null，要么是由于异常（通常是 Thread.start() 中的 OutOfMemoryError），
      */
     private boolean addWorker(Runnable firstTask, boolean core) {
+        //加上这个线程之后的线程数
+        int poolSize;
         retry:
         for (; ; ) {
             int info = threadPoolInfo.get();
@@ -80,8 +167,10 @@ public class ThreadPoolExecutorMini {
                     return false;
                 }
 
-                if (threadPoolInfo.compareAndIncrementWorkerCount(info))
+                if (threadPoolInfo.compareAndIncrementWorkerCount(info)) {
+                    poolSize = wc + 1;
                     break retry;
+                }
                 info = threadPoolInfo.get();  // Re-read ctl
                 if (ThreadPoolInfoModel.getRunState(info) != runState)
                     continue retry;
@@ -93,26 +182,19 @@ public class ThreadPoolExecutorMini {
         boolean workerAdded = false;
         Worker w = null;
         try {
-            w = new Worker(firstTask);
+            w = new Worker(this, firstTask, workStealing);
             final Thread t = w.thread;
             if (t != null) {
-                final ReentrantLock mainLock = this.mainLock;
-                mainLock.lock();
-                try {
-                    // Recheck while holding lock.
-                    // Back out on ThreadFactory failure or if
-                    // shut down before lock acquired.
-                    int rs = getRunState(threadPoolInfo.get());
-
-                    if (rs < SHUTDOWN || (rs == SHUTDOWN && firstTask == null)) {
-                        if (t.isAlive()) // precheck that t is startable
-                            throw new IllegalThreadStateException();
-                        workers.add(w);
-                        largestPoolSize = Math.max(largestPoolSize, workers.size());
-                        workerAdded = true;
-                    }
-                } finally {
-                    mainLock.unlock();
+                if (t.isAlive()) // precheck that t is startable
+                    throw new IllegalThreadStateException();
+                workers.add(w);
+                // 先登记再检查状态；shutdown()是先改状态再遍历workers，两边至少有一边能看到对方，
+                // 不会出现线程池关闭了、新线程却没被中断也没退出的情况
+                int rs = getRunState(threadPoolInfo.get());
+                if (rs < SHUTDOWN || (rs == SHUTDOWN && firstTask == null)) {
+                    //按线程数算，不按集合大小算：已经决定退出的线程还没从集合里删掉时，集合会比maximumPoolSize多出一两个
+                    largestPoolSize.accumulateAndGet(poolSize, Math::max);
+                    workerAdded = true;
                 }
                 if (workerAdded) {
                     t.start();
@@ -126,5 +208,629 @@ public class ThreadPoolExecutorMini {
         return workerStarted;
     }
 
+    //创建工作线程失败，撤销addWorker()里做的事：从集合里删掉、数量减回去，再看看是不是该终止了
+    private void addWorkerFailed(Worker w) {
+        if (w != null)
+            workers.remove(w);
+        threadPoolInfo.decrementWorkerCount();
+        tryTerminate();
+    }
+
+    /**
+     * 工作线程的主循环：先执行firstTask，然后不停地从队列里取任务来执行，直到getTask()返回null。
+     * 每个任务执行前后都会锁住worker，这样shutdown()只会中断在等任务的空闲线程，不会打断正在执行的任务。
+     * 任务抛出异常时，这个线程也随之退出，由processWorkerExit()补一个新的线程。
+     */
+    final void runWorker(Worker w) {
+        Thread wt = Thread.currentThread();
+        Runnable task = w.firstTask;
+        w.firstTask = null;
+        if (workStealing)
+            currentWorker.set(w);
+        w.unlock(); // allow interrupts
+        boolean completedAbruptly = true;
+        try {
+            while (task != null || (task = getTask()) != null) {
+                w.lock();
+                // 线程池正在停止(STOP)时，保证线程是中断状态；否则清掉中断状态。
+                // 清的时候要再检查一次，避免和shutdownNow()同时发生时把它的中断清掉
+                if ((getRunState(threadPoolInfo.get()) >= STOP ||
+                        (Thread.interrupted() && getRunState(threadPoolInfo.get()) >= STOP)) &&
+                        !wt.isInterrupted())
+                    wt.interrupt();
+                try {
+                    beforeExecute(wt, task);
+                    try {
+                        task.run();
+                        afterExecute(task, null);
+                    } catch (Throwable ex) {
+                        afterExecute(task, ex);
+                        throw ex;
+                    }
+                } finally {
+                    task = null;
+                    w.completedTasks++;
+                    w.unlock();
+                }
+            }
+            completedAbruptly = false;
+        } finally {
+            processWorkerExit(w, completedAbruptly);
+        }
+    }
+
+    /**
+     * 从队列里取一个任务，拿不到时返回null，调用它的工作线程随之退出，返回null之前已经把工作线程数量减掉了。
+     * 下面几种情况返回null：
+     * 1. 线程数超过了maximumPoolSize(调用过setMaximumPoolSize)；
+     * 2. 线程池已经STOP；
+     * 3. 线程池已经SHUTDOWN，并且队列空了；
+     * 4. 等任务超时了，并且这个线程可以超时退出(线程数多于核心线程数，或者核心线程也允许超时)，
+     * 而且它不是最后一个线程，或者队列是空的。
+     */
+    private Runnable getTask() {
+        boolean timedOut = false; // Did the last poll() time out?
+
+        for (; ; ) {
+            int c = threadPoolInfo.get();
+            int rs = getRunState(c);
+
+            //work stealing模式：先看自己的队列、workQueue、别的线程的队列，都没有再按下面的流程等
+            if (workStealing && rs < STOP) {
+                Runnable r = pollLocalOrSteal();
+                if (r != null)
+                    return r;
+            }
+
+            if (rs >= SHUTDOWN && (rs >= STOP || workQueue.isEmpty())) {
+                threadPoolInfo.decrementWorkerCount();
+                return null;
+            }
+
+            int wc = getWorkerCount(c);
+
+            // 这个线程等任务时要不要超时
+            boolean timed = pollParameter.isAllowCoreThreadTimeOut() || wc > pollParameter.getCorePoolSize();
+
+            if ((wc > pollParameter.getMaximumPoolSize() || (timed && timedOut))
+                    && (wc > 1 || workQueue.isEmpty())) {
+                if (threadPoolInfo.compareAndDecrementWorkerCount(c))
+                    return null;
+                continue;
+            }
+
+            try {
+                Runnable r = workStealing ? awaitTaskStealing(timed) : timed ?
+                        workQueue.poll(pollParameter.getKeepAliveTime(), TimeUnit.NANOSECONDS) :
+                        workQueue.take();
+                if (r != null)
+                    return r;
+                timedOut = true;
+            } catch (InterruptedException retry) {
+                //被shutdown()之类的中断了，回到开头重新检查状态
+                timedOut = false;
+            }
+        }
+    }
+
+    //work stealing模式：工作线程提交任务时放进自己的队列，不是工作线程、或者线程池已经关闭时返回false
+    private boolean pushLocal(Runnable task) {
+        Worker w = currentWorker.get();
+        if (w == null || !isRunning(threadPoolInfo.get()))
+            return false;
+        w.deque.push(task);
+        //先放任务再看有没有空闲线程；空闲线程是先登记再去偷，所以两边至少有一边能看到对方
+        if (idleWorkers.get() > 0)
+            signalIdleWorker();
+        else if (getWorkerCount(threadPoolInfo.get()) < pollParameter.getCorePoolSize())
+            //线程还没建满，新建的线程一开始就会来偷
+            addWorker(null, true);
+        return true;
+    }
+
+    //work stealing模式：不阻塞地找一个任务，依次看自己的队列、workQueue、别的线程的队列
+    private Runnable pollLocalOrSteal() {
+        Runnable r = currentWorker.get().deque.pop();
+        if (r != null)
+            return r;
+        if ((r = workQueue.poll()) != null)
+            return r;
+        return steal();
+    }
+
+    //从别的工作线程的队列顶部偷一个任务，从随机的位置开始找，免得大家都去偷同一个线程
+    private Runnable steal() {
+        final Worker self = currentWorker.get();
+        final Worker[] targets = workers.toArray();
+        final int n = targets.length;
+        if (n <= 1)
+            return null;
+        final int start = ThreadLocalRandom.current().nextInt(n);
+        //有的队列不空却没偷到(被别人抢先了)，再找一轮
+        for (int round = 0; round < 2; round++) {
+            boolean contended = false;
+            for (int i = 0; i < n; i++) {
+                Worker victim = targets[(start + i) % n];
+                if (victim == self)
+                    continue;
+                Runnable r = victim.deque.steal();
+                if (r != null)
+                    return r;
+                if (!victim.deque.isEmpty())
+                    contended = true;
+            }
+            if (!contended)
+                break;
+        }
+        return null;
+    }
+
+    //work stealing模式：登记为空闲，再找一次，还是没有就等在wakeups上，被叫醒之后再找；等超时返回null
+    private Runnable awaitTaskStealing(boolean timed) throws InterruptedException {
+        idleWorkers.incrementAndGet();
+        try {
+            for (; ; ) {
+                Runnable r = pollLocalOrSteal();
+                if (r != null)
+                    return r;
+                if (!timed)
+                    wakeups.acquire();
+                else if (!wakeups.tryAcquire(pollParameter.getKeepAliveTime(), TimeUnit.NANOSECONDS))
+                    return null;
+            }
+        } finally {
+            idleWorkers.decrementAndGet();
+        }
+    }
+
+    /**
+     * work stealing模式：放进任务之后叫醒一个空闲线程。先放任务再看有没有空闲线程；空闲线程是先登记再找任务，
+     * 所以两边至少有一边能看到对方。许可不超过空闲线程数：已经有许可没用掉，说明总有空闲线程还会再找一次，不用再加。
+     */
+    private void signalIdleWorker() {
+        if (idleWorkers.get() > wakeups.availablePermits())
+            wakeups.release();
+    }
+
+    /**
+     * 工作线程退出时的清理：从集合里删掉，统计完成的任务数，尝试终止线程池。
+     * 如果是因为任务抛异常退出的，或者剩下的线程不够处理队列里的任务，就补一个新的线程。
+     */
+    private void processWorkerExit(Worker w, boolean completedAbruptly) {
+        if (completedAbruptly) // If abrupt, then workerCount wasn't adjusted
+            threadPoolInfo.decrementWorkerCount();
+
+        //先加完成数再删线程：统计时这个线程的任务可能短暂地多算一次，但不会漏算
+        completedTaskCount.add(w.completedTasks);
+        workers.remove(w);
+        if (workStealing) {
+            //任务抛异常退出时，自己队列里可能还有任务，交给workQueue，由别的线程执行
+            Runnable r;
+            while (!w.deque.isEmpty()) {
+                if ((r = w.deque.steal()) == null)
+                    continue;
+                if (workQueue.offer(r)) {
+                    signalIdleWorker();
+                } else {
+                    try {
+                        reject(r);
+                    } catch (RejectedExecutionException ignore) {
+                    }
+                }
+            }
+        }
+
+        tryTerminate();
+
+        int c = threadPoolInfo.get();
+        if (getRunState(c) < STOP) {
+            if (!completedAbruptly) {
+                int min = pollParameter.isAllowCoreThreadTimeOut() ? 0 : pollParameter.getCorePoolSize();
+                if (min == 0 && !workQueue.isEmpty())
+                    min = 1;
+                if (getWorkerCount(c) >= min)
+                    return; // replacement not needed
+            }
+            addWorker(null, false);
+        }
+    }
+
+    /**
+     * 满足条件时把线程池推进到TERMINATED：SHUTDOWN并且线程和队列都空了，或者STOP并且线程都退出了。
+     * 还有线程没退出时，中断一个空闲线程，让关闭的信号一个一个传下去。
+     * 每个可能让线程池终止的操作(减少线程、关闭、从队列里删除任务)之后都要调用它。
+     */
+    final void tryTerminate() {
+        for (; ; ) {
+            int c = threadPoolInfo.get();
+            int rs = getRunState(c);
+            if (isRunning(c) ||
+                    rs >= TIDYING ||
+                    (rs == SHUTDOWN && !workQueue.isEmpty()))
+                return;
+            if (getWorkerCount(c) != 0) { // Eligible to terminate
+                interruptIdleWorkers(true);
+                return;
+            }
+
+            final ReentrantLock mainLock = this.mainLock;
+            mainLock.lock();
+            try {
+                if (threadPoolInfo.compareAndSet(c, ctlOf(TIDYING, 0))) {
+                    try {
+                        terminated();
+                    } finally {
+                        threadPoolInfo.set(ctlOf(TERMINATED, 0));
+                        termination.signalAll();
+                    }
+                    return;
+                }
+            } finally {
+                mainLock.unlock();
+            }
+            // else retry on failed CAS
+        }
+    }
+
+    //中断所有已经启动的线程，不管是不是在执行任务，shutdownNow()用
+    private void interruptWorkers() {
+        for (Worker w : workers)
+            w.interruptIfStarted();
+    }
+
+    //中断在等任务的空闲线程(能拿到worker的锁说明它没在执行任务)；onlyOne为true时最多中断一个
+    private void interruptIdleWorkers(boolean onlyOne) {
+        for (Worker w : workers) {
+            Thread t = w.thread;
+            if (!t.isInterrupted() && w.tryLock()) {
+                try {
+                    t.interrupt();
+                } catch (SecurityException ignore) {
+                } finally {
+                    w.unlock();
+                }
+            }
+            if (onlyOne)
+                break;
+        }
+    }
+
+    final void reject(Runnable command) {
+        pollParameter.getHandler().rejectedExecution(command, this);
+    }
+
+    /**
+     * 有序关闭：不再接收新任务，已经提交的任务(包括队列里的)照常执行完。不会等它们执行完，要等的话用awaitTermination()。
+     */
+    @Override
+    public void shutdown() {
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            threadPoolInfo.advanceRunState(SHUTDOWN);
+            interruptIdleWorkers(false);
+        } finally {
+            mainLock.unlock();
+        }
+        tryTerminate();
+    }
+
+    /**
+     * 立即关闭：不再接收新任务，中断所有线程，队列里还没执行的任务取出来返回。
+     * 正在执行的任务只是被中断，不响应中断的任务会一直执行完。
+     */
+    @NotNull
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> tasks;
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            threadPoolInfo.advanceRunState(STOP);
+            interruptWorkers();
+            tasks = drainQueue();
+        } finally {
+            mainLock.unlock();
+        }
+        tryTerminate();
+        return tasks;
+    }
 
+    //把队列里的任务都取出来。DelayQueue之类的队列drainTo()可能取不完，剩下的再一个一个删
+    private List<Runnable> drainQueue() {
+        BlockingQueue<Runnable> q = workQueue;
+        ArrayList<Runnable> taskList = new ArrayList<Runnable>();
+        q.drainTo(taskList);
+        if (!q.isEmpty()) {
+            for (Runnable r : q.toArray(new Runnable[0])) {
+                if (q.remove(r))
+                    taskList.add(r);
+            }
+        }
+        if (workStealing) {
+            //各个工作线程自己队列里的任务也取出来，已经STOP了，工作线程不会再从里面取
+            for (Worker w : workers) {
+                Runnable r;
+                while (!w.deque.isEmpty()) {
+                    if ((r = w.deque.steal()) != null)
+                        taskList.add(r);
+                }
+            }
+        }
+        return taskList;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return !isRunning(threadPoolInfo.get());
+    }
+
+    //已经关闭，但是还没有完全终止
+    public boolean isTerminating() {
+        int c = threadPoolInfo.get();
+        return !isRunning(c) && getRunState(c) < TERMINATED;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return getRunState(threadPoolInfo.get()) >= TERMINATED;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            while (getRunState(threadPoolInfo.get()) < TERMINATED) {
+                if (nanos <= 0L)
+                    return false;
+                nanos = termination.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    //从队列里删掉一个还没开始执行的任务
+    public boolean remove(Runnable task) {
+        boolean removed = workQueue.remove(task);
+        tryTerminate(); // In case SHUTDOWN and now empty
+        return removed;
+    }
+
+    public BlockingQueue<Runnable> getQueue() {
+        return workQueue;
+    }
+
+    public ThreadFactory getThreadFactory() {
+        return pollParameter.getThreadFactory();
+    }
+
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        if (threadFactory == null)
+            throw new NullPointerException();
+        pollParameter.setThreadFactory(threadFactory);
+    }
+
+    public RejectedExecutionHandlerMini getRejectedExecutionHandler() {
+        return pollParameter.getHandler();
+    }
+
+    public void setRejectedExecutionHandler(RejectedExecutionHandlerMini handler) {
+        if (handler == null)
+            throw new NullPointerException();
+        pollParameter.setHandler(handler);
+    }
+
+    public int getCorePoolSize() {
+        return pollParameter.getCorePoolSize();
+    }
+
+    //调小时多出来的空闲线程下次空闲时退出；调大时如果队列里有任务，马上补线程去执行
+    public void setCorePoolSize(int corePoolSize) {
+        if (corePoolSize < 0 || pollParameter.getMaximumPoolSize() < corePoolSize)
+            throw new IllegalArgumentException();
+        int delta = corePoolSize - pollParameter.getCorePoolSize();
+        pollParameter.setCorePoolSize(corePoolSize);
+        if (getWorkerCount(threadPoolInfo.get()) > corePoolSize)
+            interruptIdleWorkers(false);
+        else if (delta > 0) {
+            // 不知道到底要补几个线程，最多补到和队列里的任务一样多
+            int k = Math.min(delta, workQueue.size());
+            while (k-- > 0 && addWorker(null, true)) {
+                if (workQueue.isEmpty())
+                    break;
+            }
+        }
+    }
+
+    public int getMaximumPoolSize() {
+        return pollParameter.getMaximumPoolSize();
+    }
+
+    public void setMaximumPoolSize(int maximumPoolSize) {
+        if (maximumPoolSize <= 0 || maximumPoolSize < pollParameter.getCorePoolSize())
+            throw new IllegalArgumentException();
+        pollParameter.setMaximumPoolSize(maximumPoolSize);
+        if (getWorkerCount(threadPoolInfo.get()) > maximumPoolSize)
+            interruptIdleWorkers(false);
+    }
+
+    public long getKeepAliveTime(TimeUnit unit) {
+        return unit.convert(pollParameter.getKeepAliveTime(), TimeUnit.NANOSECONDS);
+    }
+
+    public void setKeepAliveTime(long time, TimeUnit unit) {
+        if (time < 0)
+            throw new IllegalArgumentException();
+        if (time == 0 && allowsCoreThreadTimeOut())
+            throw new IllegalArgumentException("Core threads must have nonzero keep alive times");
+        long keepAliveTime = unit.toNanos(time);
+        long delta = keepAliveTime - pollParameter.getKeepAliveTime();
+        pollParameter.setKeepAliveTime(keepAliveTime);
+        //超时变短了，让空闲线程按新的超时重新等
+        if (delta < 0)
+            interruptIdleWorkers(false);
+    }
+
+    public boolean allowsCoreThreadTimeOut() {
+        return pollParameter.isAllowCoreThreadTimeOut();
+    }
+
+    public void allowCoreThreadTimeOut(boolean value) {
+        if (value && pollParameter.getKeepAliveTime() <= 0)
+            throw new IllegalArgumentException("Core threads must have nonzero keep alive times");
+        if (value != pollParameter.isAllowCoreThreadTimeOut()) {
+            pollParameter.setAllowCoreThreadTimeOut(value);
+            if (value)
+                interruptIdleWorkers(false);
+        }
+    }
+
+    /**
+     * 打开自适应线程数：后台按估算的排队时间和进程CPU使用率，在[minPoolSize, maxPoolSize]之间调整corePoolSize，
+     * 排队超过targetQueueWait就加线程，CPU使用率到了maxCpuUtilization(0~1]就不再加。规则见 {@link AdaptivePoolSizerMini}。
+     * 打开期间手动setCorePoolSize()的值会被覆盖；再调用一次可以换参数。
+     */
+    public void enableAdaptiveSizing(int minPoolSize, int maxPoolSize, long targetQueueWait, TimeUnit unit,
+                                     double maxCpuUtilization) {
+        if (minPoolSize < 0 || maxPoolSize <= 0 || maxPoolSize < minPoolSize ||
+                maxPoolSize > pollParameter.getMaximumPoolSize() || targetQueueWait <= 0 ||
+                !(maxCpuUtilization > 0 && maxCpuUtilization <= 1))
+            throw new IllegalArgumentException();
+        pollParameter.setMinAdaptivePoolSize(minPoolSize);
+        pollParameter.setMaxAdaptivePoolSize(maxPoolSize);
+        pollParameter.setTargetQueueWait(unit.toNanos(targetQueueWait));
+        pollParameter.setMaxCpuUtilization(maxCpuUtilization);
+        int core = pollParameter.getCorePoolSize();
+        if (core < minPoolSize || core > maxPoolSize)
+            setCorePoolSize(Math.max(minPoolSize, Math.min(maxPoolSize, core)));
+        AdaptivePoolSizerMini s = new AdaptivePoolSizerMini(this, pollParameter);
+        //换掉之前的采样线程，它下次醒来发现不是自己了就退出
+        sizer = s;
+        VirtualThreads.start("ThreadPoolExecutorMini-sizer", s);
+    }
+
+    //关掉自适应线程数，corePoolSize停在当前的值
+    public void disableAdaptiveSizing() {
+        sizer = null;
+    }
+
+    public boolean isAdaptiveSizing() {
+        return sizer != null;
+    }
+
+    boolean isCurrentSizer(AdaptivePoolSizerMini s) {
+        return sizer == s;
+    }
+
+    //当前线程数
+    public int getPoolSize() {
+        // 已经TIDYING之后，就算还有线程没退出，也算0个
+        return getRunState(threadPoolInfo.get()) >= TIDYING ? 0 : workers.size();
+    }
+
+    //正在执行任务的线程数，只是一个近似值
+    public int getActiveCount() {
+        int n = 0;
+        for (Worker w : workers)
+            if (w.isLocked())
+                ++n;
+        return n;
+    }
+
+    public int getLargestPoolSize() {
+        return largestPoolSize.get();
+    }
+
+    //已经执行完的任务数，只是一个近似值
+    public long getCompletedTaskCount() {
+        long n = completedTaskCount.sum();
+        for (Worker w : workers)
+            n += w.completedTasks;
+        return n;
+    }
+
+    //提交过的任务数(执行完的、正在执行的、还在排队的)，只是一个近似值
+    public long getTaskCount() {
+        long n = completedTaskCount.sum();
+        for (Worker w : workers) {
+            n += w.completedTasks;
+            if (w.isLocked())
+                ++n;
+            if (w.deque != null)
+                n += w.deque.size();
+        }
+        return n + workQueue.size();
+    }
+
+    @Override
+    public String toString() {
+        int c = threadPoolInfo.get();
+        String runState =
+                isRunning(c) ? "Running" :
+                        getRunState(c) >= TERMINATED ? "Terminated" :
+                                "Shutting down";
+        return super.toString() +
+                "[" + runState +
+                ", pool size = " + getPoolSize() +
+                ", active threads = " + getActiveCount() +
+                ", queued tasks = " + workQueue.size() +
+                ", completed tasks = " + getCompletedTaskCount() +
+                "]";
+    }
+
+    //////////////////////////子类可以重写的几个回调///////////////////////////////
+
+    //在执行任务的线程上、执行任务之前调用
+    protected void beforeExecute(Thread t, Runnable r) {
+    }
+
+    //任务执行完之后调用，t是任务抛出的异常，正常结束时为null
+    protected void afterExecute(Runnable r, Throwable t) {
+    }
+
+    //线程池终止时调用一次
+    protected void terminated() {
+    }
+
+    //////////////////////////拒绝策略///////////////////////////////
+
+    //直接抛出RejectedExecutionException，默认的策略
+    public static class AbortPolicy implements RejectedExecutionHandlerMini {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutorMini e) {
+            throw new RejectedExecutionException("Task " + r.toString() + " rejected from " + e.toString());
+        }
+    }
+
+    //在调用execute()的线程上直接执行，相当于让提交任务的一方慢下来；线程池已经关闭时丢掉任务
+    public static class CallerRunsPolicy implements RejectedExecutionHandlerMini {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutorMini e) {
+            if (!e.isShutdown()) {
+                r.run();
+            }
+        }
+    }
+
+    //悄悄丢掉任务
+    public static class DiscardPolicy implements RejectedExecutionHandlerMini {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutorMini e) {
+        }
+    }
+
+    //丢掉队列里最老的任务，再重新提交这个任务；线程池已经关闭时丢掉任务
+    public static class DiscardOldestPolicy implements RejectedExecutionHandlerMini {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutorMini e) {
+            if (!e.isShutdown()) {
+                e.getQueue().poll();
+                e.execute(r);
+            }
+        }
+    }
 }
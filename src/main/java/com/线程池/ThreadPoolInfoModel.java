@@ -23,6 +23,14 @@ public class ThreadPoolInfoModel {
         return threadPoolInfo.get();
     }
 
+    public void set(int c) {
+        threadPoolInfo.set(c);
+    }
+
+    public boolean compareAndSet(int expect, int update) {
+        return threadPoolInfo.compareAndSet(expect, update);
+    }
+
     public static int ctlOf(int rs, int wc) {
         return rs | wc;
     }
@@ -38,8 +46,33 @@ public class ThreadPoolInfoModel {
         return c & CAPACITY;
     }
 
+    //状态是按大小排好的，RUNNING最小，所以直接比大小就行
+    public static boolean isRunning(int c) {
+        return c < SHUTDOWN;
+    }
+
     public boolean compareAndIncrementWorkerCount(int expect) {
         return threadPoolInfo.compareAndSet(expect, expect + 1);
     }
 
+    public boolean compareAndDecrementWorkerCount(int expect) {
+        return threadPoolInfo.compareAndSet(expect, expect - 1);
+    }
+
+    //工作线程意外退出时用，一直重试到成功为止
+    public void decrementWorkerCount() {
+        do {
+        } while (!compareAndDecrementWorkerCount(get()));
+    }
+
+    //把状态推进到至少targetState，工作线程数量不变；已经在targetState或者更后面的状态时什么也不做
+    public void advanceRunState(int targetState) {
+        for (; ; ) {
+            int c = get();
+            if (getRunState(c) >= targetState ||
+                    compareAndSet(c, ctlOf(targetState, getWorkerCount(c))))
+                break;
+        }
+    }
+
 }
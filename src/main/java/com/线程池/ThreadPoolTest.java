@@ -3,7 +3,6 @@ package com.线程池;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 
 public class ThreadPoolTest {
 
@@ -16,7 +15,7 @@ public class ThreadPoolTest {
         ExecutorService fixedThreadPool = Executors.newFixedThreadPool(10);
 
         // 核心员工只有一个线程，最大线程数量也是1
-        ThreadPoolExecutor singleThreadExecutor = ExecutorsMini.newSingleThreadExecutor();
+        ThreadPoolExecutorMini singleThreadExecutor = ExecutorsMini.newSingleThreadExecutor();
 
 
         System.out.println("执行前-核心线程数："+singleThreadExecutor.getActiveCount());
@@ -0,0 +1,104 @@
+package com.线程池;
+
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每个工作线程自己的任务双端队列(Chase-Lev)，{@link ThreadPoolExecutorMini} 的work stealing模式用。
+ * <p>
+ * 只有所属的工作线程会在底部 push/pop，后进先出：刚提交的子任务数据还在缓存里，马上就执行它；
+ * 其他空闲的工作线程从顶部 steal，先进先出：偷走的是最老的、往往也是最大块的任务。
+ * 两端平时不会碰到一起，push/pop 不需要CAS，只有只剩最后一个任务时，pop 才和 steal 用CAS抢一次。
+ */
+final class WorkStealingDequeMini {
+    private static final int INITIAL_CAPACITY = 32;
+    //对数组元素做CAS
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Runnable[].class);
+
+    //环形数组，长度是2的幂；满了由所属线程换一个两倍大的，旧数组里的任务还在原来的逻辑位置，偷的线程读旧数组也没问题
+    private volatile Runnable[] array = new Runnable[INITIAL_CAPACITY];
+    //下一个可以偷的位置，偷的线程用CAS推进
+    private final AtomicLong top = new AtomicLong();
+    //下一个push的位置，只有所属线程会写
+    private volatile long bottom;
+
+    //所属线程：放到底部
+    void push(Runnable task) {
+        final long b = bottom;
+        final long t = top.get();
+        Runnable[] a = array;
+        if (b - t >= a.length - 1) {
+            a = grow(a, t, b);
+        }
+        a[(int) b & (a.length - 1)] = task;
+        //写bottom之前写入的任务，对读到新bottom的偷取线程可见
+        bottom = b + 1;
+    }
+
+    //所属线程：从底部取出最新的任务，没有返回null
+    Runnable pop() {
+        final long b = bottom - 1;
+        final Runnable[] a = array;
+        //先写bottom再读top(都是volatile)，和steal()里先读top再读bottom的顺序配合，最后一个任务不会被两边同时拿走
+        bottom = b;
+        final long t = top.get();
+        if (t > b) {
+            //空的，恢复原状
+            bottom = t;
+            return null;
+        }
+        final int index = (int) b & (a.length - 1);
+        Runnable task = a[index];
+        if (t == b) {
+            //只剩最后一个，和偷取线程抢
+            if (top.compareAndSet(t, t + 1)) {
+                a[index] = null;
+            } else {
+                task = null;
+            }
+            bottom = t + 1;
+        } else {
+            a[index] = null;
+        }
+        return task;
+    }
+
+    //其他线程：从顶部偷一个最老的任务。队列空了、或者和别人抢输了都返回null
+    Runnable steal() {
+        final long t = top.get();
+        final long b = bottom;
+        if (t >= b) {
+            return null;
+        }
+        final Runnable[] a = array;
+        final int index = (int) t & (a.length - 1);
+        final Runnable task = a[index];
+        if (task == null || !top.compareAndSet(t, t + 1)) {
+            return null;
+        }
+        //抢到了，清掉槽位，不然偷走的任务一直被数组引用着，直到这个位置被覆盖。
+        //要用CAS：CAS成功之后top可能又被推进了好几格，所属线程已经绕回来往这个位置放了新任务，不能把它清掉
+        SLOT.compareAndSet(a, index, task, null);
+        return task;
+    }
+
+    boolean isEmpty() {
+        return top.get() >= bottom;
+    }
+
+    //大概有多少个任务
+    int size() {
+        return (int) Math.max(0, bottom - top.get());
+    }
+
+    private Runnable[] grow(Runnable[] old, long t, long b) {
+        final Runnable[] a = new Runnable[old.length << 1];
+        for (long i = t; i < b; i++) {
+            a[(int) i & (a.length - 1)] = old[(int) i & (old.length - 1)];
+        }
+        array = a;
+        return a;
+    }
+}
@@ -20,6 +20,8 @@ import java.util.concurrent.locks.AbstractQueuedSynchronizer;
  * runWorker).
  */
 final class Worker extends AbstractQueuedSynchronizer implements Runnable {
+    // 所属的线程池。源码里Worker是内部类，直接用外部类的方法；拆成单独的类之后要自己拿着引用
+    private final ThreadPoolExecutorMini pool;
     // 工作线程所持有的的线程
     final Thread thread;
     /**
@@ -30,23 +32,29 @@ final class Worker extends AbstractQueuedSynchronizer implements Runnable {
      * Per-thread task counter
      */
     volatile long completedTasks;
+    // work stealing模式下这个线程自己的任务队列，其他模式为null
+    final WorkStealingDequeMini deque;
 
     /**
      * Creates with given first task and thread from ThreadFactory.
      *
-     * @param firstTask the first task (null if none)
+     * @param pool         the pool this worker belongs to
+     * @param firstTask    the first task (null if none)
+     * @param workStealing whether this worker owns a work-stealing deque
      */
-    public Worker(Runnable firstTask) {
+    Worker(ThreadPoolExecutorMini pool, Runnable firstTask, boolean workStealing) {
         setState(-1); // inhibit interrupts until runWorker
+        this.pool = pool;
         this.firstTask = firstTask;
-        this.thread = getThreadFactory().newThread(this);
+        this.deque = workStealing ? new WorkStealingDequeMini() : null;
+        this.thread = pool.getThreadFactory().newThread(this);
     }
 
     /**
      * Delegates main run loop to outer runWorker
      */
     public void run() {
-        runWorker(this);
+        pool.runWorker(this);
     }
 
     // Lock methods
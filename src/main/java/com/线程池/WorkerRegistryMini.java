@@ -0,0 +1,76 @@
+package com.线程池;
+
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link ThreadPoolExecutorMini} 里所有工作线程的集合。
+ * <p>
+ * 线程创建、退出时的登记和删除不用加锁：集合是 ConcurrentHashMap 的key set，写入只锁一个桶，
+ * 不同线程同时登记、删除基本不会互相等；线程数单独用一个原子整数记，add() 能拿到登记之后准确的线程数。
+ * <p>
+ * 遍历(中断线程、统计)直接用迭代器，弱一致：遍历开始之前登记好的线程一定能遍历到。
+ * 偷任务要随机挑线程，用 {@link #toArray()} 拿一个数组快照，集合没变时一直复用同一个数组，变了之后第一个来拿的线程重新生成。
+ */
+final class WorkerRegistryMini implements Iterable<Worker> {
+    private static final Worker[] EMPTY = new Worker[0];
+
+    private final Set<Worker> workers = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger size = new AtomicInteger();
+    //集合每变一次加1，用来判断快照是不是过期了
+    private final AtomicInteger version = new AtomicInteger();
+    private volatile Snapshot snapshot = new Snapshot(0, EMPTY);
+
+    private static final class Snapshot {
+        final int version;
+        final Worker[] workers;
+
+        Snapshot(int version, Worker[] workers) {
+            this.version = version;
+            this.workers = workers;
+        }
+    }
+
+    //登记一个工作线程，返回登记之后的线程数
+    int add(Worker w) {
+        workers.add(w);
+        //先改集合再改版本号：读到新版本号的线程，生成快照时一定能看到这个线程
+        version.incrementAndGet();
+        return size.incrementAndGet();
+    }
+
+    //删掉一个工作线程，不在集合里返回false
+    boolean remove(Worker w) {
+        if (!workers.remove(w))
+            return false;
+        version.incrementAndGet();
+        size.decrementAndGet();
+        return true;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    //当前所有工作线程的数组，不要修改它。集合在并发地变时，可能少了刚登记的、或者多了刚删掉的
+    Worker[] toArray() {
+        final int v = version.get();
+        final Snapshot s = snapshot;
+        if (s.version == v)
+            return s.workers;
+        final Worker[] a = workers.toArray(EMPTY);
+        snapshot = new Snapshot(v, a);
+        return a;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Worker> iterator() {
+        return workers.iterator();
+    }
+}
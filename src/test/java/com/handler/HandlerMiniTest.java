@@ -0,0 +1,200 @@
+package com.handler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HandlerMiniTest extends LooperTestSupport {
+    {
+        //从一个很大的时间开始，溢出的问题更容易暴露
+        clock = new ManualClockMini(Long.MAX_VALUE / 2);
+    }
+
+    @Test
+    void atTimeIsMeasuredOnTheLooperClock() throws InterruptedException {
+        startLooper();
+        assertSame(clock, handler.getLooper().getClock());
+        long now = TimeUnit.NANOSECONDS.toMillis(clock.uptimeNanos());
+        handler.sendEmptyMessageAtTime(1, now + 10);
+        handler.postAtTime(() -> handled.add(2), now + 20);
+        sync();
+        assertTrue(handled.isEmpty());
+
+        clock.advance(10, TimeUnit.MILLISECONDS);
+        assertEquals(1, take());
+        clock.advance(10, TimeUnit.MILLISECONDS);
+        assertEquals(2, take());
+    }
+
+    @Test
+    void hugeDelaysSaturateInsteadOfOverflowing() throws InterruptedException {
+        startLooper();
+        //now + delay 溢出成负数的话，这几条会排到最前面马上处理
+        handler.sendEmptyMessageDelayed(1, Long.MAX_VALUE);
+        handler.sendMessageDelayed(handler.obtainMessage(2), Long.MAX_VALUE / 2 + 1, TimeUnit.NANOSECONDS);
+        handler.sendMessageDelayedCoalesced(handler.obtainMessage(3), Long.MAX_VALUE, false,
+                HandlerMini.CoalescePolicy.DROP_NEW);
+        handler.sendEmptyMessage(0);
+        assertEquals(0, take());
+        sync();
+        assertTrue(handled.isEmpty());
+        assertTrue(handler.hasMessages(1));
+        assertTrue(handler.hasMessages(2));
+        assertTrue(handler.hasMessages(3));
+    }
+
+    @Test
+    void resendingAPendingMessageLeavesItWhereItIs() throws InterruptedException {
+        startLooper();
+        MessageMini msg = handler.obtainMessage(1);
+        handler.sendMessageDelayed(msg, 10);
+        //异步、低优先级的handler把它再发一次：要在改异步标记和优先级之前拒绝，否则它在队列里的位置就乱了
+        HandlerMini async = HandlerMini.createAsync(handler.getLooper());
+        async.setPriority(MessageMini.PRIORITY_BACKGROUND);
+        assertThrows(RuntimeException.class, () -> async.sendMessage(msg));
+        assertThrows(RuntimeException.class, () -> async.sendMessageAtFrontOfQueue(msg));
+        assertThrows(RuntimeException.class,
+                () -> async.sendMessageCoalesced(msg, false, HandlerMini.CoalescePolicy.DROP_NEW));
+        assertThrows(IllegalStateException.class, () -> msg.setAsynchronous(true));
+        assertFalse(msg.isAsynchronous());
+        assertEquals(MessageMini.PRIORITY_NORMAL, msg.getPriority());
+        assertSame(handler, msg.target);
+
+        //还能照常找到、删掉
+        handler.removeMessages(1);
+        assertFalse(handler.hasMessages(1));
+        assertEquals(0, handler.getLooper().getMetrics().getQueueDepth());
+    }
+
+    @Test
+    void discardedCallsAreCancelledInsteadOfHanging() throws Exception {
+        startLooper();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        handler.post(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+        });
+        //looper堵在这里之后再发，不然下面的removeCallbacksAndMessages()会连它一起删掉
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        //被删掉的
+        CompletableFuture<Integer> removed = handler.callAsync(() -> 1);
+        handler.removeCallbacksAndMessages(null);
+        assertTrue(removed.isCancelled());
+
+        //looper退出时还在队列里的
+        CompletableFuture<Integer> async = handler.callAsync(() -> 2);
+        CompletableFuture<Boolean> blocking = new CompletableFuture<>();
+        Thread caller = new Thread(() -> blocking.complete(handler.runWithScissors(() -> handled.add(3), 0)));
+        caller.start();
+        //两个调用都进了队列再退出
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (handler.getLooper().getMetrics().getQueueDepth() < 2) {
+            assertTrue(System.nanoTime() < deadline, "runWithScissors never enqueued");
+            Thread.onSpinWait();
+        }
+        handler.getLooper().quit();
+        release.countDown();
+        assertThrows(CancellationException.class, () -> async.get(1, TimeUnit.SECONDS));
+        assertFalse(blocking.get(1, TimeUnit.SECONDS));
+        caller.join(1000);
+        looperThread.join(1000);
+        assertTrue(handled.isEmpty());
+    }
+
+    @Test
+    void coalescedSendsKeepOnePendingMessage() throws InterruptedException {
+        startLooper();
+        BlockingQueue<Object> objs = new LinkedBlockingQueue<>();
+        HandlerMini h = new HandlerMini(handler.getLooper(), msg -> {
+            objs.add(msg.what + ":" + msg.obj);
+            return true;
+        });
+        String[] values = new String[100];
+        for (int i = 0; i < 100; i++) {
+            values[i] = "v" + i;
+            h.sendMessageDelayedCoalesced(h.obtainMessage(1, values[i]), 10, false, HandlerMini.CoalescePolicy.REPLACE_PAYLOAD);
+            h.sendMessageDelayedCoalesced(h.obtainMessage(2, values[i]), 10, false, HandlerMini.CoalescePolicy.DROP_NEW);
+        }
+        assertEquals(2, handler.getLooper().getMetrics().getQueueDepth());
+        //REPLACE_PAYLOAD换了obj，token索引也要跟着更新
+        assertTrue(h.hasMessages(1, values[99]));
+        assertFalse(h.hasMessages(1, values[0]));
+
+        clock.advance(10, TimeUnit.MILLISECONDS);
+        assertEquals("1:v99", objs.poll(1, TimeUnit.SECONDS));
+        assertEquals("2:v0", objs.poll(1, TimeUnit.SECONDS));
+        sync();
+        assertTrue(objs.isEmpty());
+    }
+
+    @Test
+    void synchronousCallsReportWhyTheyWereNotRun() throws Exception {
+        startLooper();
+        MessageQueueMini queue = handler.getLooper().getQueue();
+        handler.sendEmptyMessageDelayed(1, 10);
+        handler.sendEmptyMessageDelayed(2, 10);
+
+        //队列满了发不进去：说是队列满了，不是looper退出了
+        queue.setCapacity(2, MessageQueueMini.OverflowPolicy.FAIL);
+        RejectedExecutionException full = assertThrows(RejectedExecutionException.class,
+                () -> handler.callWithScissors(() -> 1, 1, TimeUnit.SECONDS));
+        assertTrue(full.getMessage().contains("full queue"), full.getMessage());
+        ExecutionException async = assertThrows(ExecutionException.class,
+                () -> handler.callAsync(() -> 1).get(1, TimeUnit.SECONDS));
+        assertTrue(async.getCause().getMessage().contains("full queue"));
+        assertFalse(handler.runWithScissors(() -> handled.add(3), 1000));
+
+        //DROP_NEWEST丢掉的调用post()还是返回true，调用方看到的是取消，不是执行成功
+        queue.setCapacity(2, MessageQueueMini.OverflowPolicy.DROP_NEWEST);
+        assertThrows(CancellationException.class, () -> handler.callWithScissors(() -> 1, 1, TimeUnit.SECONDS));
+        assertTrue(handler.callAsync(() -> 1).isCancelled());
+        assertFalse(handler.runWithScissors(() -> handled.add(3), 1000));
+        assertTrue(handled.isEmpty());
+
+        handler.getLooper().quit();
+        looperThread.join(1000);
+        RejectedExecutionException dead = assertThrows(RejectedExecutionException.class,
+                () -> handler.callWithScissors(() -> 1, 1, TimeUnit.SECONDS));
+        assertTrue(dead.getMessage().contains("dead thread"), dead.getMessage());
+    }
+
+    @Test
+    void callWithScissorsRunsOnLooperThread() throws Exception {
+        startLooper();
+        assertSame(looperThread, handler.callWithScissors(Thread::currentThread, 1, TimeUnit.SECONDS));
+        assertSame(looperThread, handler.callAsync(Thread::currentThread).get(1, TimeUnit.SECONDS));
+
+        //在looper线程上调用时直接执行，不会自己等自己
+        Thread inline = handler.callWithScissors(
+                () -> handler.callWithScissors(Thread::currentThread, 1, TimeUnit.SECONDS), 1, TimeUnit.SECONDS);
+        assertSame(looperThread, inline);
+
+        //looper被堵住时超时，超时的任务不会再执行
+        CountDownLatch release = new CountDownLatch(1);
+        handler.post(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+        });
+        assertThrows(TimeoutException.class,
+                () -> handler.callWithScissors(() -> handled.add(-1), 50, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(handler.runWithScissors(() -> handled.add(1), 1000));
+        assertEquals(1, take());
+    }
+}
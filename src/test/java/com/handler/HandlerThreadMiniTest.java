@@ -0,0 +1,74 @@
+package com.handler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HandlerThreadMiniTest {
+
+    @Test
+    void getLooperWaitsAndKeepsTheInterruptFlag() throws InterruptedException {
+        CountDownLatch prepare = new CountDownLatch(1);
+        HandlerThreadMini thread = new HandlerThreadMini("late") {
+            @Override
+            public void run() {
+                //looper晚一点才准备好，getLooper()要等
+                try {
+                    prepare.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                super.run();
+            }
+        };
+        thread.start();
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+            }
+            prepare.countDown();
+        });
+        releaser.start();
+        try {
+            //等的过程中被中断：照样等到looper准备好，中断标记还留着
+            Thread.currentThread().interrupt();
+            LooperMini looper = thread.getLooper();
+            assertTrue(Thread.interrupted());
+            assertNotNull(looper);
+            assertSame(thread, looper.getThread());
+        } finally {
+            Thread.interrupted();
+            releaser.join();
+            thread.quit();
+            thread.join(1000);
+        }
+        assertFalse(thread.isAlive());
+        assertNull(thread.getLooper());
+    }
+
+    @Test
+    void quitSafelyRunsDueMessagesFirst() throws InterruptedException {
+        HandlerThreadMini thread = new HandlerThreadMini("worker");
+        thread.start();
+        HandlerMini handler = new HandlerMini(thread.getLooper());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch ran = new CountDownLatch(1);
+        handler.post(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+        });
+        handler.post(ran::countDown);
+        assertTrue(thread.quitSafely());
+        release.countDown();
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+        assertFalse(thread.quit());
+    }
+}
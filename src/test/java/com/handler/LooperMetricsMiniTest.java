@@ -0,0 +1,46 @@
+package com.handler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LooperMetricsMiniTest extends LooperTestSupport {
+
+    @Test
+    void metricsTrackDepthAndSlowDispatch() throws InterruptedException {
+        LooperMini looper = LooperMini.startVirtualLooper("metrics-looper", HeapMessageStore::new, clock);
+        LooperMetricsMini metrics = looper.getMetrics();
+        HandlerMini h = new HandlerMini(looper) {
+            @Override
+            public void handleMessage(MessageMini msg) {
+                //处理what=1时把时钟拨过慢分发阈值，模拟一个卡住looper的handler
+                if (msg.what == 1) {
+                    clock.advance(200, TimeUnit.MILLISECONDS);
+                }
+                handled.add(msg.what);
+            }
+        };
+        h.sendEmptyMessageDelayed(1, 10);
+        h.sendEmptyMessageDelayed(2, 10);
+        assertEquals(2, metrics.getQueueDepth());
+
+        clock.advance(10, TimeUnit.MILLISECONDS);
+        assertEquals(1, take());
+        assertEquals(2, take());
+        h.sendEmptyMessage(3);
+        assertEquals(3, take());
+
+        assertEquals(0, metrics.getQueueDepth());
+        assertEquals(1, metrics.getSlowDispatchCount());
+        assertEquals(1, metrics.getLastSlowDispatchWhat());
+        assertSame(h, metrics.getLastSlowDispatchTarget());
+        long[] max = new long[4];
+        metrics.forEachWhat((what, count, total, maxNanos) -> max[what] = maxNanos);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), max[1]);
+        //what=2 在what=1处理完之后才开始分发，它等了200毫秒
+        assertTrue(metrics.getLatencyPercentileNanos(1) >= TimeUnit.MILLISECONDS.toNanos(200));
+        looper.quit();
+    }
+}
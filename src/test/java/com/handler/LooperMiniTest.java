@@ -0,0 +1,155 @@
+package com.handler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LooperMiniTest extends LooperTestSupport {
+
+    @Test
+    void removalWithinBatchSkipsRemovedMessages() throws InterruptedException {
+        startLooper();
+        Runnable r = () -> handled.add(-1);
+        boolean[] seen = new boolean[3];
+        onMessage = msg -> {
+            if (msg.what == 1) {
+                //3、4和这条是同一批取出来的，还没分发，照样查得到、删得掉
+                seen[0] = handler.hasMessages(4);
+                seen[1] = handler.hasCallbacks(r);
+                handler.removeMessages(3);
+                handler.removeCallbacks(r);
+                seen[2] = handler.hasMessages(3);
+            }
+            return false;
+        };
+        sendBatch(() -> {
+            handler.sendEmptyMessage(1);
+            handler.sendEmptyMessage(2);
+            handler.post(r);
+            handler.sendEmptyMessage(3);
+            handler.sendEmptyMessage(4);
+        });
+        assertEquals(1, take());
+        assertEquals(2, take());
+        assertEquals(4, take());
+        assertTrue(seen[0]);
+        assertTrue(seen[1]);
+        assertFalse(seen[2]);
+        //同一个looper上按顺序处理，下一条到了说明被删掉的消息确实没有分发
+        handler.sendEmptyMessage(5);
+        assertEquals(5, take());
+        assertEquals(0, handler.getLooper().getMetrics().getQueueDepth());
+    }
+
+    @Test
+    void quitWithinBatchDropsTheRest() throws InterruptedException {
+        startLooper();
+        onMessage = msg -> {
+            if (msg.what == 2) {
+                handler.getLooper().quit();
+            }
+            return false;
+        };
+        sendBatch(() -> {
+            for (int i = 1; i <= 5; i++) {
+                handler.sendEmptyMessage(i);
+            }
+        });
+        looperThread.join(1000);
+        assertFalse(looperThread.isAlive());
+        assertEquals(1, take());
+        assertEquals(2, take());
+        assertTrue(handled.isEmpty());
+        assertEquals(0, handler.getLooper().getMetrics().getQueueDepth());
+    }
+
+    @Test
+    void quitSafelyWithinBatchDeliversTheRest() throws InterruptedException {
+        startLooper();
+        onMessage = msg -> {
+            if (msg.what == 2) {
+                handler.getLooper().quitSafely();
+            }
+            return false;
+        };
+        sendBatch(() -> {
+            for (int i = 1; i <= 5; i++) {
+                handler.sendEmptyMessage(i);
+            }
+        });
+        looperThread.join(1000);
+        assertFalse(looperThread.isAlive());
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, take());
+        }
+        assertTrue(handled.isEmpty());
+    }
+
+    @Test
+    void throwingHandlerRequeuesTheRestOfTheBatch() throws InterruptedException {
+        startLooper();
+        looperThread.setUncaughtExceptionHandler((t, e) -> handled.add(-2));
+        onMessage = msg -> {
+            if (msg.what == 2) {
+                throw new IllegalStateException("boom");
+            }
+            return false;
+        };
+        sendBatch(() -> {
+            for (int i = 1; i <= 5; i++) {
+                handler.sendEmptyMessage(i);
+            }
+        });
+        looperThread.join(1000);
+        assertFalse(looperThread.isAlive());
+        assertEquals(1, take());
+        assertEquals(-2, take());
+        //没分发的3条回到了队列里，计数也对得上，之后quit()能正常回收
+        LooperMetricsMini metrics = handler.getLooper().getMetrics();
+        assertEquals(3, metrics.getQueueDepth());
+        assertTrue(handler.hasMessages(3));
+        handler.getLooper().quit();
+        assertEquals(0, metrics.getQueueDepth());
+        assertFalse(handler.hasMessages(3));
+    }
+
+    @Test
+    void virtualLooperRunsUntilQuit() throws InterruptedException {
+        LooperMini looper = LooperMini.startVirtualLooper("virtual-looper", HeapMessageStore::new, clock);
+        HandlerMini h = new HandlerMini(looper) {
+            @Override
+            public void handleMessage(MessageMini msg) {
+                handled.add(msg.what);
+            }
+        };
+        h.sendEmptyMessageDelayed(1, 10);
+        h.sendEmptyMessage(0);
+        assertEquals(0, take());
+        clock.advance(10, TimeUnit.MILLISECONDS);
+        assertEquals(1, take());
+
+        looper.quit();
+        looper.getThread().join(1000);
+        assertFalse(looper.getThread().isAlive());
+    }
+
+    //先把looper堵住，再发送，放开之后这些消息作为一批取出来
+    void sendBatch(Runnable send) throws InterruptedException {
+        handler.getLooper().setBatchDispatch(16, 1, TimeUnit.SECONDS);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        handler.post(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+        });
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        send.run();
+        release.countDown();
+    }
+}
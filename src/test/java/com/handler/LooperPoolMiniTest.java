@@ -0,0 +1,113 @@
+package com.handler;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LooperPoolMiniTest {
+    LooperPoolMini pool = new LooperPoolMini("pool", 4);
+
+    @AfterEach
+    void quit() {
+        pool.quit();
+    }
+
+    @Test
+    void sameKeyRunsInOrderOnOneLooper() throws InterruptedException {
+        List<Integer> order = new ArrayList<>();
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            int n = i;
+            pool.post("connection-7", () -> {
+                //只有一个线程会碰order，不需要同步
+                order.add(n);
+                threads.add(Thread.currentThread());
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, threads.size());
+        assertSame(pool.getLooper("connection-7").getThread(), threads.iterator().next());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, order.get(i));
+        }
+    }
+
+    @Test
+    void keylessTasksRunOnIdleLoopers() throws InterruptedException {
+        //把key对应的looper堵住，共享任务要由其他looper完成
+        CountDownLatch release = new CountDownLatch(1);
+        pool.post("busy", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+        });
+        Thread busy = pool.getLooper("busy").getThread();
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        CountDownLatch done = new CountDownLatch(200);
+        for (int i = 0; i < 200; i++) {
+            pool.post(() -> {
+                threads.add(Thread.currentThread());
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(threads.contains(busy));
+        release.countDown();
+    }
+
+    @Test
+    void pendingDelayedMessageDoesNotBreakUpSharedDrain() throws InterruptedException {
+        LooperPoolMini single = new LooperPoolMini("single", 1);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            single.post("key", () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            });
+            //一条很久以后才到期的消息：队列深度不为0，但没有要马上处理的消息，共享任务不用一个一个地让
+            LooperMini looper = single.getLooper("key");
+            new HandlerMini(looper).postDelayed(() -> {
+            }, 10_000);
+            CountDownLatch done = new CountDownLatch(2 * 16);
+            for (int i = 0; i < 2 * 16; i++) {
+                single.post(done::countDown);
+            }
+            release.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            CountDownLatch synced = new CountDownLatch(1);
+            single.post("key", synced::countDown);
+            assertTrue(synced.await(5, TimeUnit.SECONDS));
+            //堵住的任务、两批共享任务、同步用的任务；每个共享任务都让一次的话会有30多条
+            assertTrue(looper.getMetrics().getDispatchedCount() <= 6,
+                    "dispatched " + looper.getMetrics().getDispatchedCount());
+        } finally {
+            single.quit();
+        }
+    }
+
+    @Test
+    void postAfterQuitIsRejected() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        assertTrue(pool.post(ran::countDown));
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        pool.quit();
+        //和按key的post(key, r)一样返回false，不是悄悄丢掉
+        assertFalse(pool.post(() -> {
+        }));
+        assertFalse(pool.post("key", () -> {
+        }));
+    }
+}
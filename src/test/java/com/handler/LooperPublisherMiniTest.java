@@ -0,0 +1,213 @@
+package com.handler;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LooperPublisherMiniTest {
+    //订阅者收到的消息的what，按收到的顺序
+    BlockingQueue<Integer> handled = new LinkedBlockingQueue<>();
+    LooperPublisherMini publisher;
+    HandlerMini handler;
+
+    @AfterEach
+    void quit() throws InterruptedException {
+        if (publisher != null) {
+            publisher.getLooper().quit();
+            publisher.getLooper().getThread().join(1000);
+        }
+    }
+
+    @Test
+    void publisherDeliversOnlyRequestedMessages() throws InterruptedException {
+        start(2);
+        Recorder subscriber = new Recorder();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+        handler.sendEmptyMessage(0);
+        assertEquals(0, take());
+
+        //没有需求了，消息留在队列里，队列满了由容量策略反压到生产者
+        assertTrue(handler.sendEmptyMessage(1));
+        //同步点：looper已经看过这条消息，确实没有发出去
+        assertTrue(handler.runWithScissors(() -> {
+        }, 1000));
+        assertTrue(handled.isEmpty());
+        assertTrue(handler.sendEmptyMessage(2));
+        assertFalse(handler.sendEmptyMessage(3));
+
+        subscriber.subscription.request(5);
+        assertEquals(1, take());
+        assertEquals(2, take());
+        //post出去的Runnable不发给订阅者，照常在looper线程上执行
+        CountDownLatch ran = new CountDownLatch(1);
+        handler.post(ran::countDown);
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+
+        publisher.getLooper().quit();
+        assertTrue(subscriber.completed.await(1, TimeUnit.SECONDS));
+        assertTrue(handled.isEmpty());
+    }
+
+    @Test
+    void runnablesRunWhileThereIsNoDemand() throws Exception {
+        start(Integer.MAX_VALUE);
+        Recorder subscriber = new Recorder();
+        publisher.subscribe(subscriber);
+        handler.sendEmptyMessage(1);
+        handler.sendEmptyMessage(2);
+        handler.sendEmptyMessage(3);
+        //没有需求，Runnable照样执行，同步调用不会卡住
+        assertTrue(handler.runWithScissors(() -> {
+        }, 0));
+        assertEquals(42, handler.callWithScissors(() -> 42, 1, TimeUnit.SECONDS));
+        assertTrue(handled.isEmpty());
+
+        //压着的消息还在队列里：查得到、删得掉、算在深度里
+        LooperMetricsMini metrics = publisher.getLooper().getMetrics();
+        assertEquals(3, metrics.getQueueDepth());
+        assertTrue(handler.hasMessages(2));
+        handler.removeMessages(2);
+        assertFalse(handler.hasMessages(2));
+        assertEquals(2, metrics.getQueueDepth());
+
+        subscriber.subscription.request(1);
+        assertEquals(1, take());
+        handler.sendEmptyMessage(4);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        //后发的排在压着的后面
+        assertEquals(3, take());
+        assertEquals(4, take());
+        assertTrue(handler.runWithScissors(() -> {
+        }, 1000));
+        assertEquals(0, metrics.getQueueDepth());
+    }
+
+    @Test
+    void deferredBacklogIsDeliveredInBatchesInOrder() throws InterruptedException {
+        start(Integer.MAX_VALUE);
+        Recorder subscriber = new Recorder();
+        publisher.subscribe(subscriber);
+        for (int i = 0; i < 200; i++) {
+            handler.sendEmptyMessage(i);
+        }
+        //同步点：200条都压下了
+        assertTrue(handler.runWithScissors(() -> {
+        }, 1000));
+        LooperMetricsMini metrics = publisher.getLooper().getMetrics();
+        assertEquals(200, metrics.getQueueDepth());
+
+        //比一批(64条)多，又不是整批：只发要的那么多，剩下的还压着
+        subscriber.subscription.request(70);
+        for (int i = 0; i < 70; i++) {
+            assertEquals(i, take());
+        }
+        assertTrue(handler.runWithScissors(() -> {
+        }, 1000));
+        assertTrue(handled.isEmpty());
+        assertEquals(130, metrics.getQueueDepth());
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        for (int i = 70; i < 200; i++) {
+            assertEquals(i, take());
+        }
+        assertTrue(handler.runWithScissors(() -> {
+        }, 1000));
+        assertEquals(0, metrics.getQueueDepth());
+    }
+
+    @Test
+    void invalidRequestIsReportedOnTheLooperThread() throws InterruptedException {
+        start(Integer.MAX_VALUE);
+        boolean[] errorDuringSubscribe = new boolean[1];
+        Recorder subscriber = new Recorder() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                super.onSubscribe(s);
+                s.request(0);
+                errorDuringSubscribe[0] = errors.getCount() == 0;
+            }
+        };
+        publisher.subscribe(subscriber);
+        //onSubscribe返回之前不能收到onError
+        assertFalse(errorDuringSubscribe[0]);
+        assertTrue(subscriber.errors.await(1, TimeUnit.SECONDS));
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertSame(publisher.getLooper().getThread(), subscriber.errorThread);
+        //当作取消订阅，looper随之退出，不再发onComplete
+        publisher.getLooper().getThread().join(1000);
+        assertFalse(publisher.getLooper().getThread().isAlive());
+        assertEquals(1, subscriber.completed.getCount());
+    }
+
+    @Test
+    void onCompleteWaitsForOnSubscribeToReturn() throws InterruptedException {
+        start(Integer.MAX_VALUE);
+        boolean[] completedDuringSubscribe = new boolean[1];
+        Recorder subscriber = new Recorder() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                super.onSubscribe(s);
+                //looper在onSubscribe还没返回时就退出了
+                publisher.getLooper().quit();
+                try {
+                    publisher.getLooper().getThread().join(1000);
+                } catch (InterruptedException e) {
+                }
+                completedDuringSubscribe[0] = completed.getCount() == 0;
+            }
+        };
+        publisher.subscribe(subscriber);
+        assertFalse(completedDuringSubscribe[0]);
+        assertEquals(0, subscriber.completed.getCount());
+    }
+
+    void start(int capacity) {
+        publisher = LooperPublisherMini.start("publisher", capacity, MessageQueueMini.OverflowPolicy.FAIL);
+        handler = new HandlerMini(publisher.getLooper());
+    }
+
+    int take() throws InterruptedException {
+        Integer what = handled.poll(1, TimeUnit.SECONDS);
+        assertNotNull(what, "message not delivered in time");
+        return what;
+    }
+
+    //把收到的信号记下来
+    class Recorder implements Flow.Subscriber<MessageMini> {
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+        volatile Thread errorThread;
+        final CountDownLatch errors = new CountDownLatch(1);
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+        }
+
+        @Override
+        public void onNext(MessageMini msg) {
+            handled.add(msg.what);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            errorThread = Thread.currentThread();
+            errors.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.handler;
+
+import org.junit.jupiter.api.AfterEach;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//几个测试共用的looper：跑在手动时钟上，handler把处理过的消息的what记下来
+abstract class LooperTestSupport {
+    ManualClockMini clock = new ManualClockMini();
+    //looper线程处理过的消息的what，按处理顺序
+    BlockingQueue<Integer> handled = new LinkedBlockingQueue<>();
+    HandlerMini handler;
+    Thread looperThread;
+    //处理消息时额外做的事，在looper线程上调用，返回true时这条消息不再记下来
+    volatile HandlerMini.Callback onMessage = msg -> false;
+
+    @AfterEach
+    void quit() throws InterruptedException {
+        if (handler != null) {
+            handler.getLooper().quit();
+            looperThread.join(1000);
+        }
+    }
+
+    int take() throws InterruptedException {
+        Integer what = handled.poll(1, TimeUnit.SECONDS);
+        assertNotNull(what, "message not handled in time");
+        return what;
+    }
+
+    //同步点：looper处理完这之前已经到期的消息才返回，之后looper线程写的东西对这里可见
+    void sync() {
+        sync(handler);
+    }
+
+    //同上，用h发，比如同步屏障挡住了普通消息时用异步的handler
+    static void sync(HandlerMini h) {
+        assertTrue(h.runWithScissors(() -> {
+        }, 1000));
+    }
+
+    //等到线程阻塞住(looper在next()里、生产者在等空位)
+    static void awaitParked(Thread thread) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING) {
+            assertTrue(System.nanoTime() < deadline, thread.getName() + " never parked");
+            Thread.sleep(1);
+        }
+    }
+
+    void startLooper() throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(1);
+        looperThread = new Thread(() -> {
+            LooperMini.prepare(clock);
+            handler = new HandlerMini(LooperMini.myLooper(), msg -> onMessage.handleMessage(msg)) {
+                @Override
+                public void handleMessage(MessageMini msg) {
+                    handled.add(msg.what);
+                }
+            };
+            ready.countDown();
+            LooperMini.loop();
+        });
+        looperThread.start();
+        ready.await();
+    }
+}
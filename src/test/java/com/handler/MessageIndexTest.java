@@ -0,0 +1,69 @@
+package com.handler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageIndexTest extends LooperTestSupport {
+
+    @Test
+    void lookupsSurviveGrowthAndBucketReuse() throws InterruptedException {
+        startLooper();
+        //不会真的发消息，只当索引的键用
+        HandlerMini h1 = handler;
+        HandlerMini h2 = new HandlerMini(handler.getLooper());
+        MessageIndex index = new MessageIndex();
+        Object token = new Object();
+        List<MessageMini> msgs = new ArrayList<>();
+        //键比初始的槽多得多，表要扩容好几次
+        for (int i = 0; i < 500; i++) {
+            MessageMini msg = new MessageMini();
+            msg.target = i % 2 == 0 ? h1 : h2;
+            msg.what = i / 4;
+            msg.obj = i % 3 == 0 ? token : null;
+            index.add(msg);
+            msgs.add(msg);
+        }
+        assertEquals(2, count(index.byWhat(h1, 0), MessageIndex.BY_WHAT));
+        assertEquals(84, count(index.byToken(h1, token), MessageIndex.BY_TOKEN));
+        assertNull(index.byWhat(h1, 500));
+
+        //删掉偶数位置的，有的键整个空了，桶收回去
+        for (int i = 0; i < msgs.size(); i += 2) {
+            index.remove(msgs.get(i));
+        }
+        assertNull(index.byWhat(h1, 0));
+        assertNull(index.byToken(h1, token));
+        assertEquals(2, count(index.byWhat(h2, 0), MessageIndex.BY_WHAT));
+        assertEquals(83, count(index.byToken(h2, token), MessageIndex.BY_TOKEN));
+
+        //收回去的桶给新的键用，不能带着旧键的消息
+        MessageMini fresh = new MessageMini();
+        fresh.target = h1;
+        fresh.what = 1000;
+        index.add(fresh);
+        assertSame(fresh, index.byWhat(h1, 1000));
+        assertNull(MessageIndex.next(fresh, MessageIndex.BY_WHAT));
+        assertNull(index.byWhat(h1, 0));
+
+        index.remove(fresh);
+        for (int i = 1; i < msgs.size(); i += 2) {
+            index.remove(msgs.get(i));
+        }
+        for (int what = 0; what < 125; what++) {
+            assertNull(index.byWhat(h2, what));
+        }
+        assertNull(index.byToken(h2, token));
+    }
+
+    static int count(MessageMini head, int by) {
+        int n = 0;
+        for (MessageMini p = head; p != null; p = MessageIndex.next(p, by)) {
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,85 @@
+package com.handler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageMiniTest {
+
+    @Test
+    void poolCapacityIsEnforcedAndHitsAreCounted() throws Throwable {
+        final int maxPoolSize = MessageMini.getMaxPoolSize();
+        final int localPoolSize = MessageMini.getLocalPoolSize();
+        //新线程的池子是空的，结果才算得准
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                MessageMini.setPoolCapacity(0, 2);
+                MessageMini.setPoolCapacity(4, 2);
+                assertEquals(0, MessageMini.getPoolSize());
+                for (int i = 0; i < 20; i++) {
+                    new MessageMini().recycle();
+                }
+                //自己的池子留2条，全局池子4条，其余的交给GC
+                assertEquals(4, MessageMini.getPoolSize());
+
+                long hits = MessageMini.getPoolHitCount();
+                long misses = MessageMini.getPoolMissCount();
+                for (int i = 0; i < 10; i++) {
+                    MessageMini.obtain();
+                }
+                assertEquals(6, MessageMini.getPoolHitCount() - hits);
+                assertEquals(4, MessageMini.getPoolMissCount() - misses);
+                assertEquals(0, MessageMini.getPoolSize());
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        try {
+            thread.start();
+            thread.join();
+        } finally {
+            MessageMini.setPoolCapacity(maxPoolSize, localPoolSize);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        assertThrows(IllegalArgumentException.class, () -> MessageMini.setPoolCapacity(-1, 0));
+    }
+
+    @Test
+    void recycleRejectsMessagesInUse() {
+        MessageMini msg = MessageMini.obtain();
+        msg.markInUse();
+        assertThrows(IllegalStateException.class, msg::recycle);
+
+        //回收过的消息在池子里也带着使用标记，重复回收会被发现
+        MessageMini recycled = MessageMini.obtain();
+        recycled.recycle();
+        assertThrows(IllegalStateException.class, recycled::recycle);
+    }
+
+    @Test
+    void payloadSlotsAreCopiedAndClearedOnRecycle() {
+        MessageMini msg = MessageMini.obtain();
+        msg.setLong(0, Long.MAX_VALUE);
+        msg.setDouble(3, 101.25);
+        msg.setBytes(new byte[]{1, 2, 3, 4}, 1, 2);
+        MessageMini copy = MessageMini.obtain(msg);
+        assertEquals(Long.MAX_VALUE, copy.getLong(0));
+        assertEquals(101.25, copy.getDouble(3));
+        byte[] bytes = new byte[MessageMini.MAX_BYTES];
+        assertEquals(2, copy.getBytes(bytes, 0));
+        assertEquals(2, bytes[0]);
+        assertEquals(3, bytes[1]);
+        assertThrows(IndexOutOfBoundsException.class, () -> copy.setLong(MessageMini.LONG_SLOTS, 1));
+        assertThrows(IllegalArgumentException.class, () -> copy.setBytes(new byte[MessageMini.MAX_BYTES + 1], 0, MessageMini.MAX_BYTES + 1));
+
+        msg.recycle();
+        assertEquals(0, msg.getLong(0));
+        assertEquals(0, msg.getDouble(3));
+        assertEquals(0, msg.getBytesLength());
+    }
+}
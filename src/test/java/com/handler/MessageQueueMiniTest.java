@@ -0,0 +1,386 @@
+package com.handler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageQueueMiniTest extends LooperTestSupport {
+
+    @Test
+    void delayedMessagesWaitForClock() throws InterruptedException {
+        startLooper();
+        handler.sendEmptyMessageDelayed(2, 20);
+        handler.sendEmptyMessageDelayed(1, 10);
+        handler.sendEmptyMessage(0);
+
+        assertEquals(0, take());
+        sync();
+        assertTrue(handled.isEmpty());
+
+        clock.advance(10, TimeUnit.MILLISECONDS);
+        assertEquals(1, take());
+        sync();
+        assertTrue(handled.isEmpty());
+
+        clock.advance(10, TimeUnit.MILLISECONDS);
+        assertEquals(2, take());
+    }
+
+    @Test
+    void sameTimeKeepsSendOrder() throws InterruptedException {
+        startLooper();
+        for (int i = 0; i < 100; i++) {
+            handler.sendEmptyMessageDelayed(i, 5);
+        }
+        clock.advance(5, TimeUnit.MILLISECONDS);
+        List<Integer> result = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            result.add(take());
+            assertEquals(i, result.get(i));
+        }
+    }
+
+    @Test
+    void removeMessagesCancelsPendingTimeouts() throws InterruptedException {
+        startLooper();
+        Object token = new Object();
+        Runnable timeout = () -> handled.add(-1);
+        handler.sendEmptyMessageDelayed(1, 10);
+        handler.sendMessageDelayed(handler.obtainMessage(2, token), 10);
+        handler.postDelayed(timeout, 10);
+        handler.sendEmptyMessageDelayed(3, 10);
+        assertTrue(handler.hasMessages(1));
+        assertTrue(handler.hasMessages(2, token));
+        assertFalse(handler.hasMessages(2, new Object()));
+        assertTrue(handler.hasCallbacks(timeout));
+
+        handler.removeMessages(1);
+        handler.removeCallbacksAndMessages(token);
+        handler.removeCallbacks(timeout);
+        assertFalse(handler.hasMessages(1));
+        assertFalse(handler.hasMessages(2));
+        assertFalse(handler.hasCallbacks(timeout));
+
+        clock.advance(10, TimeUnit.MILLISECONDS);
+        assertEquals(3, take());
+        sync();
+        assertTrue(handled.isEmpty());
+    }
+
+    @Test
+    void frontOfQueueOvertakesDueAndDelayedMessages() throws InterruptedException {
+        startLooper();
+        CountDownLatch release = new CountDownLatch(1);
+        handler.post(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+        });
+        handler.sendEmptyMessageDelayed(3, 5);
+        handler.sendEmptyMessage(1);
+        handler.sendEmptyMessage(2);
+        handler.sendMessageAtFrontOfQueue(handler.obtainMessage(-1));
+        handler.sendMessageAtFrontOfQueue(handler.obtainMessage(0));
+        clock.advance(5, TimeUnit.MILLISECONDS);
+        handler.sendEmptyMessage(4);
+        release.countDown();
+        //插队的后发先到，其余的不管在快车道还是堆里，都按 (when, 发送顺序)
+        for (int what : new int[]{0, -1, 1, 2, 3, 4}) {
+            assertEquals(what, take());
+        }
+    }
+
+    @Test
+    void concurrentProducersLoseAndDuplicateNothing() throws InterruptedException {
+        int producers = 8;
+        int perProducer = 20_000;
+        //只有looper线程会写，每个生产者下一条应该收到的序号
+        int[] expectedNext = new int[producers];
+        int[] outOfOrder = new int[1];
+        CountDownLatch done = new CountDownLatch(producers * perProducer);
+        startLooper();
+        HandlerMini h = new HandlerMini(handler.getLooper(), msg -> {
+            if (msg.arg2 != expectedNext[msg.arg1]++) {
+                outOfOrder[0]++;
+            }
+            done.countDown();
+            return true;
+        });
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    h.sendMessage(h.obtainMessage(0, producer, i));
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (Thread t : threads) {
+            t.join();
+        }
+        //等looper把手上的处理完再读，同步点之后looper线程写的数组对这里可见
+        assertTrue(handler.runWithScissors(() -> {
+        }, 1000));
+        assertEquals(0, outOfOrder[0]);
+        int[] all = new int[producers];
+        Arrays.fill(all, perProducer);
+        assertArrayEquals(all, expectedNext);
+        assertEquals(0, handler.getLooper().getMetrics().getQueueDepth());
+    }
+
+    @Test
+    void enqueueWakesLooperParkedOnLaterDeadline() throws InterruptedException {
+        startLooper();
+        handler.sendEmptyMessageDelayed(2, 10_000);
+        awaitParked(looperThread);
+        //时钟没有动过，只能靠入队唤醒
+        handler.sendEmptyMessage(1);
+        assertEquals(1, take());
+        assertTrue(handled.isEmpty());
+    }
+
+    @Test
+    void earlierDeadlineWakesLooperParkedOnLaterOne() throws InterruptedException {
+        //真实时钟：looper在等10秒后的消息，来了一条20毫秒后的，要提前醒来重新定时
+        HandlerThreadMini thread = new HandlerThreadMini("deadline");
+        thread.start();
+        try {
+            HandlerMini h = new HandlerMini(thread.getLooper(), msg -> {
+                handled.add(msg.what);
+                return true;
+            });
+            h.sendEmptyMessageDelayed(2, 10_000);
+            awaitParked(thread);
+            h.sendEmptyMessageDelayed(1, 20);
+            assertEquals(1, take());
+            assertTrue(h.hasMessages(2));
+        } finally {
+            thread.quit();
+        }
+    }
+
+    @Test
+    void syncBarrierHoldsBackOnlySyncMessages() throws InterruptedException {
+        startLooper();
+        HandlerMini async = HandlerMini.createAsync(handler.getLooper(), msg -> {
+            handled.add(msg.what);
+            return true;
+        });
+        handler.sendEmptyMessage(0);
+        int token = handler.getLooper().getQueue().postSyncBarrier();
+        handler.sendEmptyMessage(1);
+        async.sendEmptyMessage(2);
+        async.sendEmptyMessageDelayed(3, 10);
+
+        //屏障之前发送的消息不受影响
+        assertEquals(0, take());
+        assertEquals(2, take());
+        clock.advance(10, TimeUnit.MILLISECONDS);
+        assertEquals(3, take());
+        //普通消息被屏障挡住了，用异步消息做同步点
+        sync(async);
+        assertTrue(handled.isEmpty());
+
+        handler.getLooper().getQueue().removeSyncBarrier(token);
+        assertEquals(1, take());
+        assertThrows(IllegalStateException.class, () -> handler.getLooper().getQueue().removeSyncBarrier(token));
+    }
+
+    @Test
+    void sendRacingQuitIsDiscardedAndCancelled() throws InterruptedException {
+        //让发送线程停在检查完mQuitting、还没压栈的地方：它第一次读时钟是算when，第二次是压栈之前给tracer打时间戳
+        AtomicReference<Thread> stalled = new AtomicReference<>();
+        AtomicInteger reads = new AtomicInteger();
+        CountDownLatch paused = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        clock = new ManualClockMini() {
+            @Override
+            public long uptimeNanos() {
+                if (Thread.currentThread() == stalled.get() && reads.incrementAndGet() == 2) {
+                    paused.countDown();
+                    try {
+                        resume.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+                return super.uptimeNanos();
+            }
+        };
+        startLooper();
+        handler.getLooper().setTracer(new MessageTracerMini(16, 1));
+        boolean[] ran = new boolean[1];
+        Thread caller = new Thread(() -> ran[0] = handler.runWithScissors(() -> handled.add(1), 0));
+        stalled.set(caller);
+        caller.start();
+        assertTrue(paused.await(1, TimeUnit.SECONDS));
+        //quit()和looper最后一次取入口都在它压栈之前结束
+        handler.getLooper().quit();
+        looperThread.join(1000);
+        assertFalse(looperThread.isAlive());
+        resume.countDown();
+        caller.join(1000);
+        assertFalse(caller.isAlive(), "runWithScissors stranded by quit()");
+        assertFalse(ran[0]);
+        assertTrue(handled.isEmpty());
+        assertEquals(0, handler.getLooper().getMetrics().getQueueDepth());
+    }
+
+    @Test
+    void quitSafelyDeliversDueMessages() throws InterruptedException {
+        startLooper();
+        handler.sendEmptyMessageDelayed(2, 10);
+        handler.post(() -> {
+            //looper正在处理消息的时候退出，后面已经到期的消息还会处理
+            handler.sendEmptyMessage(0);
+            handler.sendEmptyMessage(1);
+            handler.getLooper().quitSafely();
+        });
+        assertEquals(0, take());
+        assertEquals(1, take());
+        looperThread.join(1000);
+        assertFalse(looperThread.isAlive());
+        assertFalse(handler.sendEmptyMessage(3));
+        assertTrue(handled.isEmpty());
+    }
+
+    @Test
+    void boundedQueueAppliesOverflowPolicy() throws InterruptedException {
+        startLooper();
+        MessageQueueMini queue = handler.getLooper().getQueue();
+        LooperMetricsMini metrics = handler.getLooper().getMetrics();
+        queue.setCapacity(2, MessageQueueMini.OverflowPolicy.FAIL);
+        assertTrue(handler.sendEmptyMessageDelayed(1, 10));
+        assertTrue(handler.sendEmptyMessageDelayed(2, 20));
+        assertFalse(handler.sendEmptyMessageDelayed(3, 5));
+        assertEquals(1, metrics.getRejectedCount());
+
+        queue.setCapacity(2, MessageQueueMini.OverflowPolicy.DROP_NEWEST);
+        assertTrue(handler.sendEmptyMessageDelayed(3, 5));
+        assertEquals(1, metrics.getDroppedNewestCount());
+
+        //队首是最早该处理的what=1
+        queue.setCapacity(2, MessageQueueMini.OverflowPolicy.DROP_OLDEST);
+        assertTrue(handler.sendEmptyMessageDelayed(4, 30));
+        assertEquals(1, metrics.getDroppedOldestCount());
+        assertFalse(handler.hasMessages(1));
+
+        queue.setCapacity(2, MessageQueueMini.OverflowPolicy.BLOCK);
+        Thread producer = new Thread(() -> handler.sendEmptyMessageDelayed(5, 40));
+        producer.start();
+        awaitParked(producer);
+        assertTrue(producer.isAlive());
+
+        clock.advance(20, TimeUnit.MILLISECONDS);
+        assertEquals(2, take());
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        assertEquals(1, metrics.getProducerBlockCount());
+
+        clock.advance(20, TimeUnit.MILLISECONDS);
+        assertEquals(4, take());
+        assertEquals(5, take());
+    }
+
+    @Test
+    void idleBudgetDefersRemainingIdleHandlers() throws InterruptedException {
+        startLooper();
+        MessageQueueMini queue = handler.getLooper().getQueue();
+        queue.setIdleBudget(15, TimeUnit.MILLISECONDS);
+        BlockingQueue<String> idled = new LinkedBlockingQueue<>();
+        for (String name : new String[]{"a", "b", "c"}) {
+            queue.addIdleHandler(() -> {
+                idled.add(name);
+                clock.advance(10, TimeUnit.MILLISECONDS);
+                //c只跑一次
+                return !name.equals("c");
+            });
+        }
+        handler.sendEmptyMessage(0);
+        assertEquals(0, take());
+        assertEquals("a", idled.poll(1, TimeUnit.SECONDS));
+        assertEquals("b", idled.poll(1, TimeUnit.SECONDS));
+        //looper跑完这一轮空闲处理程序，睡下了
+        awaitParked(looperThread);
+        assertTrue(idled.isEmpty());
+
+        //上次没跑到的c先跑
+        handler.sendEmptyMessage(1);
+        assertEquals(1, take());
+        assertEquals("c", idled.poll(1, TimeUnit.SECONDS));
+        assertEquals("a", idled.poll(1, TimeUnit.SECONDS));
+        //looper跑完这一轮空闲处理程序，睡下了
+        awaitParked(looperThread);
+        assertTrue(idled.isEmpty());
+
+        handler.sendEmptyMessage(2);
+        assertEquals(2, take());
+        assertEquals("b", idled.poll(1, TimeUnit.SECONDS));
+        assertEquals("a", idled.poll(1, TimeUnit.SECONDS));
+        //looper跑完这一轮空闲处理程序，睡下了
+        awaitParked(looperThread);
+        assertTrue(idled.isEmpty());
+    }
+
+    @Test
+    void higherPriorityFirstUntilLowerOneAges() throws InterruptedException {
+        startLooper();
+        handler.getLooper().getQueue().setPriorityAging(10, TimeUnit.MILLISECONDS);
+        CountDownLatch release = new CountDownLatch(1);
+        handler.post(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+        });
+        sendWithPriority(1, MessageMini.PRIORITY_BACKGROUND);
+        sendWithPriority(2, MessageMini.PRIORITY_NORMAL);
+        handler.setPriority(MessageMini.PRIORITY_INTERACTIVE);
+        handler.sendEmptyMessage(3);
+        handler.setPriority(MessageMini.PRIORITY_NORMAL);
+        release.countDown();
+        assertEquals(3, take());
+        assertEquals(2, take());
+        assertEquals(1, take());
+
+        //后台消息等了25毫秒，超过了2*aging，排到刚到的交互消息前面
+        CountDownLatch release2 = new CountDownLatch(1);
+        handler.post(() -> {
+            try {
+                release2.await();
+            } catch (InterruptedException e) {
+            }
+        });
+        sendWithPriority(4, MessageMini.PRIORITY_BACKGROUND);
+        clock.advance(25, TimeUnit.MILLISECONDS);
+        sendWithPriority(5, MessageMini.PRIORITY_INTERACTIVE);
+        release2.countDown();
+        assertEquals(4, take());
+        assertEquals(5, take());
+    }
+
+    void sendWithPriority(int what, int priority) {
+        MessageMini msg = handler.obtainMessage(what);
+        msg.setPriority(priority);
+        handler.sendMessage(msg);
+    }
+}
@@ -0,0 +1,65 @@
+package com.handler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//两种 MessageStore 实现取出来的顺序
+class MessageStoreTest {
+
+    @Test
+    void linkedStoreOrdersLikeHeapStore() {
+        MessageStore[] stores = {new HeapMessageStore(), new LinkedMessageStore()};
+        long[] whens = {30, 0, 10, 10, 0, 20, 5};
+        for (MessageStore store : stores) {
+            long seq = 1;
+            for (int i = 0; i < whens.length; i++) {
+                MessageMini msg = new MessageMini();
+                msg.what = i;
+                msg.when = whens[i];
+                msg.seq = msg.when == 0 ? -seq++ : seq++;
+                store.add(msg, 10);
+            }
+            int[] order = new int[whens.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = store.poll().what;
+            }
+            //插队的消息后发先到，其余按 (when, 发送顺序)
+            assertEquals(Arrays.toString(new int[]{4, 1, 6, 2, 3, 5, 0}), Arrays.toString(order));
+            assertTrue(store.isEmpty());
+        }
+    }
+
+    @Test
+    void heapStoreOrdersAcrossLaneAndHeap() {
+        //入队时的now忽前忽后，消息一会儿进快车道、一会儿进堆，取出来还是 (when, seq) 的顺序，插队的排最前面
+        Random random = new Random(42);
+        HeapMessageStore store = new HeapMessageStore();
+        List<MessageMini> expected = new ArrayList<>();
+        long seq = 1;
+        for (int i = 0; i < 2000; i++) {
+            MessageMini msg = new MessageMini();
+            msg.what = i;
+            msg.when = random.nextInt(10) == 0 ? 0 : 1 + random.nextInt(100);
+            msg.seq = msg.when == 0 ? -seq++ : seq++;
+            store.add(msg, 1 + random.nextInt(100));
+            expected.add(msg);
+            //中途取走一些，两边的头要反复比较
+            if (random.nextInt(4) == 0) {
+                MessageMini first = expected.stream().reduce((a, b) -> MessageStore.before(b, a) ? b : a).get();
+                assertSame(first, store.poll());
+                expected.remove(first);
+            }
+        }
+        expected.sort((a, b) -> MessageStore.before(a, b) ? -1 : 1);
+        for (MessageMini msg : expected) {
+            assertSame(msg, store.poll());
+        }
+        assertTrue(store.isEmpty());
+    }
+}
@@ -0,0 +1,62 @@
+package com.handler;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageTracerMiniTest extends LooperTestSupport {
+
+    @Test
+    void tracerRecordsSampledSpans() throws Exception {
+        startLooper();
+        MessageTracerMini tracer = new MessageTracerMini(2, 1);
+        handler.getLooper().setTracer(tracer);
+        //what=2处理了5毫秒
+        onMessage = msg -> {
+            if (msg.what == 2) {
+                clock.advance(5, TimeUnit.MILLISECONDS);
+            }
+            return false;
+        };
+        long sent = clock.uptimeNanos();
+        handler.sendEmptyMessage(0);
+        handler.sendEmptyMessage(1);
+        handler.sendEmptyMessageDelayed(2, 10);
+        assertEquals(0, take());
+        assertEquals(1, take());
+        clock.advance(10, TimeUnit.MILLISECONDS);
+        assertEquals(2, take());
+        //关掉之后发的消息不再记录；它处理完时，前面几条的记录肯定已经写好了
+        handler.getLooper().setTracer(null);
+        handler.sendEmptyMessage(3);
+        assertEquals(3, take());
+
+        assertEquals(3, tracer.getRecordedCount());
+        List<long[]> spans = new ArrayList<>();
+        long self = Thread.currentThread().getId();
+        //容量是2，最早的一条被覆盖了
+        assertEquals(2, tracer.forEachSpan((what, targetHash, thread, enqueue, when, start, end, recycled) -> {
+            spans.add(new long[]{what, enqueue, when, start, end, recycled});
+            assertEquals(self, thread);
+            assertEquals(System.identityHashCode(handler), targetHash);
+        }));
+        assertEquals(2, spans.size());
+        long[] first = spans.get(0);
+        assertArrayEquals(new long[]{1, sent, sent, sent}, new long[]{first[0], first[1], first[2], first[3]});
+        assertTrue(first[3] <= first[4] && first[4] <= first[5]);
+        //延迟10毫秒：when在入队之后10毫秒，到期马上开始分发，分发用了5毫秒，之后时钟没再动过
+        long delay = TimeUnit.MILLISECONDS.toNanos(10);
+        long run = TimeUnit.MILLISECONDS.toNanos(5);
+        assertArrayEquals(new long[]{2, sent, sent + delay, sent + delay, sent + delay + run, sent + delay + run},
+                spans.get(1));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(2, tracer.writeTo(out));
+        assertEquals(12 + 2 * 7 * 8, out.size());
+    }
+}
@@ -0,0 +1,51 @@
+package com.handler;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RingMessageQueueMiniTest extends LooperTestSupport {
+
+    @Test
+    void ringQueueDeliversRecordsInOrderPerProducer() throws InterruptedException {
+        startLooper();
+        RingMessageQueueMini ring = new RingMessageQueueMini(handler, 100);
+        assertEquals(128, ring.capacity());
+        Thread[] producers = new Thread[4];
+        //looper线程上记下每个生产者最后收到的arg1，和乱序的次数；take()之后对这里可见
+        int[] last = {-1, -1, -1, -1};
+        int[] outOfOrder = new int[producers.length];
+        onMessage = msg -> {
+            if (msg.arg1 <= last[msg.what]) {
+                outOfOrder[msg.what]++;
+            }
+            last[msg.what] = msg.arg1;
+            return false;
+        };
+        for (int p = 0; p < producers.length; p++) {
+            int what = p;
+            producers[p] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    //环满了就等looper取走一些
+                    while (!ring.send(what, i, 0)) {
+                        Thread.onSpinWait();
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join(5000);
+            assertFalse(producer.isAlive(), producer.getName() + " still sending");
+        }
+        int[] count = new int[producers.length];
+        for (int i = 0; i < producers.length * 10_000; i++) {
+            count[take()]++;
+        }
+        assertArrayEquals(new int[]{10_000, 10_000, 10_000, 10_000}, count);
+        //同一个生产者发的按发送的顺序收到
+        assertArrayEquals(new int[producers.length], outOfOrder);
+        assertArrayEquals(new int[]{9_999, 9_999, 9_999, 9_999}, last);
+        assertEquals(0, ring.size());
+    }
+}
@@ -0,0 +1,108 @@
+package com.线程池;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptivePoolSizerMiniTest {
+    static final long TARGET = TimeUnit.MILLISECONDS.toNanos(10);
+    static final long PERIOD = TimeUnit.MILLISECONDS.toNanos(20);
+
+    static AdaptivePoolSizerMini sizer(int min, int max, double maxCpu) {
+        ThreadPollParameter parameter = new ThreadPollParameter();
+        parameter.setMinAdaptivePoolSize(min);
+        parameter.setMaxAdaptivePoolSize(max);
+        parameter.setTargetQueueWait(TARGET);
+        parameter.setMaxCpuUtilization(maxCpu);
+        return new AdaptivePoolSizerMini(null, parameter);
+    }
+
+    @Test
+    void growsFastAndShrinksSlowlyWithDeadBand() {
+        AdaptivePoolSizerMini sizer = sizer(2, 20, 0.9);
+        //100个排队、20毫秒完成了20个：估算排队100毫秒，远超10毫秒的目标，连续两次才加
+        assertEquals(8, sizer.decide(8, 100, 20, PERIOD, 0.2));
+        assertEquals(10, sizer.decide(8, 100, 20, PERIOD, 0.2));
+        //队列不空却一个都没完成，也算排队太久
+        assertEquals(10, sizer.decide(10, 5, 0, PERIOD, -1));
+        assertEquals(12, sizer.decide(10, 5, 0, PERIOD, -1));
+        //不会超过上限
+        assertEquals(19, sizer.decide(19, 100, 20, PERIOD, 0.2));
+        assertEquals(20, sizer.decide(19, 100, 20, PERIOD, 0.2));
+
+        //排队时间在目标和目标的一半之间：不动，计数清零
+        for (int i = 0; i < 10; i++) {
+            assertEquals(20, sizer.decide(20, 8, 20, PERIOD, 0.2));
+        }
+        //队列空了，连续SHRINK_AFTER次才减一个
+        for (int i = 1; i < AdaptivePoolSizerMini.SHRINK_AFTER; i++) {
+            assertEquals(20, sizer.decide(20, 0, 20, PERIOD, 0.2));
+        }
+        assertEquals(19, sizer.decide(20, 0, 20, PERIOD, 0.2));
+        //中间来一次排队太久，减的计数重新开始
+        assertEquals(19, sizer.decide(19, 100, 20, PERIOD, 0.2));
+        for (int i = 1; i < AdaptivePoolSizerMini.SHRINK_AFTER; i++) {
+            assertEquals(19, sizer.decide(19, 0, 20, PERIOD, 0.2));
+        }
+        assertEquals(18, sizer.decide(19, 0, 20, PERIOD, 0.2));
+        //不会低于下限
+        for (int i = 0; i < 10; i++) {
+            assertEquals(2, sizer.decide(2, 0, 0, PERIOD, 0.2));
+        }
+    }
+
+    @Test
+    void doesNotGrowWhenCpuIsSaturated() {
+        AdaptivePoolSizerMini sizer = sizer(1, 16, 0.8);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(4, sizer.decide(4, 100, 1, PERIOD, 0.95));
+        }
+        //CPU降下来之后照常加
+        assertEquals(4, sizer.decide(4, 100, 1, PERIOD, 0.5));
+        assertEquals(5, sizer.decide(4, 100, 1, PERIOD, 0.5));
+    }
+
+    @Test
+    void poolGrowsUnderBacklogAndShrinksWhenIdle() throws InterruptedException {
+        ThreadPoolExecutorMini pool = new ThreadPoolExecutorMini(1, 8, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        try {
+            pool.enableAdaptiveSizing(1, 8, 5, TimeUnit.MILLISECONDS, 1.0);
+            assertTrue(pool.isAdaptiveSizing());
+            //阻塞型的任务，CPU不忙，排队却越来越长
+            for (int i = 0; i < 400; i++) {
+                pool.execute(() -> {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                    }
+                });
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (pool.getCorePoolSize() < 8 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(8, pool.getCorePoolSize());
+            assertTrue(pool.getLargestPoolSize() > 1);
+
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while ((pool.getCorePoolSize() > 1 || pool.getPoolSize() > 1) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, pool.getCorePoolSize());
+            assertEquals(1, pool.getPoolSize());
+            assertEquals(400, pool.getCompletedTaskCount());
+
+            pool.disableAdaptiveSizing();
+            assertFalse(pool.isAdaptiveSizing());
+            assertThrows(IllegalArgumentException.class,
+                    () -> pool.enableAdaptiveSizing(1, 9, 5, TimeUnit.MILLISECONDS, 1.0));
+        } finally {
+            pool.shutdownNow();
+            assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+}
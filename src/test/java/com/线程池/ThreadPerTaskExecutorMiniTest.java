@@ -0,0 +1,144 @@
+package com.线程池;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThreadPerTaskExecutorMiniTest {
+    ThreadPerTaskExecutorMini executor;
+
+    @AfterEach
+    void shutdown() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdownNow();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void unboundedRunsEveryTaskOnItsOwnThread() throws InterruptedException {
+        executor = (ThreadPerTaskExecutorMini) ExecutorsMini.newVirtualThreadPerTaskExecutor();
+        //每个任务都要等到所有任务都开始了才结束，只有同时执行才能全部完成
+        int tasks = 200;
+        CountDownLatch allStarted = new CountDownLatch(tasks);
+        AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < tasks; i++) {
+            executor.execute(() -> {
+                allStarted.countDown();
+                try {
+                    if (allStarted.await(10, TimeUnit.SECONDS))
+                        done.incrementAndGet();
+                } catch (InterruptedException e) {
+                }
+            });
+        }
+        executor.shutdown();
+        assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> {
+        }));
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(tasks, done.get());
+    }
+
+    @Test
+    void limiterCapsConcurrencyWithoutBlockingSubmitter() throws InterruptedException {
+        executor = (ThreadPerTaskExecutorMini) ExecutorsMini.newVirtualThreadPerTaskExecutor(4);
+        int tasks = 2000;
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        CountDownLatch gate = new CountDownLatch(1);
+        for (int i = 0; i < tasks; i++) {
+            executor.execute(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                }
+                running.decrementAndGet();
+                done.incrementAndGet();
+            });
+        }
+        //所有任务都提交完了，而最多只有4个在执行，说明提交没有被阻塞
+        assertTrue(executor.getActiveCount() <= 4);
+        assertTrue(executor.getWaitingCount() >= tasks - 4);
+        gate.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(tasks, done.get());
+        assertTrue(maxRunning.get() <= 4);
+    }
+
+    @Test
+    void shutdownNowInterruptsRunningAndReturnsWaiting() throws InterruptedException {
+        executor = new ThreadPerTaskExecutorMini(Thread::new, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        executor.execute(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        });
+        Runnable waiting = () -> {
+        };
+        executor.execute(waiting);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        List<Runnable> left = executor.shutdownNow();
+        assertEquals(1, left.size());
+        assertSame(waiting, left.get(0));
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(executor.isTerminated());
+    }
+
+    @Test
+    void failingFactoryRejectsOnlyTheTaskItCouldNotStart() throws InterruptedException {
+        //第一个线程正常创建，之后的都返回null
+        AtomicInteger created = new AtomicInteger();
+        List<Throwable> reported = new CopyOnWriteArrayList<Throwable>();
+        executor = new ThreadPerTaskExecutorMini(r -> {
+            if (created.getAndIncrement() > 0)
+                return null;
+            Thread t = new Thread(r);
+            t.setUncaughtExceptionHandler((thread, e) -> reported.add(e));
+            return t;
+        }, 1);
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+        executor.execute(() -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+            }
+            ran.incrementAndGet();
+        });
+        //排队等许可，由第一个任务的线程替它启动：启动失败报告给那个线程，不影响它自己的任务结账
+        executor.execute(ran::incrementAndGet);
+        gate.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, ran.get());
+        assertEquals(1, reported.size());
+        assertTrue(reported.get(0) instanceof RejectedExecutionException);
+
+        //提交的线程自己的任务启动失败时抛给它，这个任务撤销掉
+        executor = new ThreadPerTaskExecutorMini(r -> {
+            throw new IllegalStateException("no threads");
+        }, 1);
+        assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> {
+        }));
+        assertEquals(0, executor.getWaitingCount());
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,285 @@
+package com.线程池;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThreadPoolExecutorMiniTest {
+    ThreadPoolExecutorMini pool;
+    CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach
+    void shutdown() throws InterruptedException {
+        release.countDown();
+        if (pool != null) {
+            pool.shutdownNow();
+            assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void growsToCoreThenQueuesThenToMaxThenRejects() {
+        pool = new ThreadPoolExecutorMini(1, 2, 1, TimeUnit.MINUTES, new ArrayBlockingQueue<>(1));
+        pool.execute(this::blockUntilReleased);
+        assertEquals(1, pool.getPoolSize());
+        pool.execute(this::blockUntilReleased);
+        assertEquals(1, pool.getPoolSize());
+        assertEquals(1, pool.getQueue().size());
+        pool.execute(this::blockUntilReleased);
+        assertEquals(2, pool.getPoolSize());
+        assertThrows(RejectedExecutionException.class, () -> pool.execute(this::blockUntilReleased));
+        assertEquals(2, pool.getLargestPoolSize());
+    }
+
+    @Test
+    void shutdownRunsQueuedTasksThenTerminates() throws InterruptedException {
+        pool = new ThreadPoolExecutorMini(2, 2, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < 100; i++) {
+            pool.execute(done::incrementAndGet);
+        }
+        pool.shutdown();
+        assertTrue(pool.isShutdown());
+        assertThrows(RejectedExecutionException.class, () -> pool.execute(done::incrementAndGet));
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(pool.isTerminated());
+        assertEquals(100, done.get());
+        assertEquals(100, pool.getCompletedTaskCount());
+        assertEquals(0, pool.getPoolSize());
+    }
+
+    @Test
+    void shutdownNowInterruptsAndReturnsQueuedTasks() throws InterruptedException {
+        pool = new ThreadPoolExecutorMini(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        CountDownLatch interrupted = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        pool.execute(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        });
+        Runnable queued = () -> {
+        };
+        pool.execute(queued);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        List<Runnable> left = pool.shutdownNow();
+        assertEquals(1, left.size());
+        assertSame(queued, left.get(0));
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void idleThreadsAboveCoreTimeOut() throws InterruptedException {
+        pool = new ThreadPoolExecutorMini(1, 3, 50, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1));
+        CountDownLatch started = new CountDownLatch(3);
+        CountDownLatch finish = new CountDownLatch(1);
+        for (int i = 0; i < 4; i++) {
+            pool.execute(() -> {
+                started.countDown();
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                }
+            });
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(3, pool.getPoolSize());
+        finish.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pool.getPoolSize() > 1 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, pool.getPoolSize());
+        assertEquals(4, pool.getCompletedTaskCount());
+    }
+
+    @Test
+    void callerRunsPolicyRunsOnSubmitter() {
+        pool = new ThreadPoolExecutorMini(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1),
+                Thread::new, new ThreadPoolExecutorMini.CallerRunsPolicy());
+        pool.execute(this::blockUntilReleased);
+        pool.execute(this::blockUntilReleased);
+        Thread[] ranOn = new Thread[1];
+        pool.execute(() -> ranOn[0] = Thread.currentThread());
+        assertSame(Thread.currentThread(), ranOn[0]);
+    }
+
+    @Test
+    void failingTaskReplacesWorker() throws Exception {
+        pool = new ThreadPoolExecutorMini(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                r -> {
+                    Thread t = new Thread(r);
+                    t.setUncaughtExceptionHandler((thread, e) -> {
+                    });
+                    return t;
+                }, new ThreadPoolExecutorMini.AbortPolicy());
+        pool.execute(() -> {
+            throw new IllegalStateException("boom");
+        });
+        assertEquals(42, (int) pool.submit(() -> 42).get(5, TimeUnit.SECONDS));
+        assertEquals(1, pool.getPoolSize());
+    }
+
+    @Test
+    void workStealingRunsRecursiveTasksOnAllWorkers() throws InterruptedException {
+        pool = (ThreadPoolExecutorMini) ExecutorsMini.newWorkStealingPool(4);
+        //一棵深度为12的二叉树，每个任务把两个子任务提交到自己的队列里
+        int depth = 12;
+        CountDownLatch done = new CountDownLatch((1 << (depth + 1)) - 1);
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        class Node implements Runnable {
+            final int level;
+
+            Node(int level) {
+                this.level = level;
+            }
+
+            @Override
+            public void run() {
+                threads.add(Thread.currentThread());
+                if (level < depth) {
+                    pool.execute(new Node(level + 1));
+                    pool.execute(new Node(level + 1));
+                }
+                //让其他线程有机会来偷
+                LockSupport.parkNanos(10_000);
+                done.countDown();
+            }
+        }
+        pool.execute(new Node(0));
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertTrue(threads.size() > 1);
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals((1 << (depth + 1)) - 1, pool.getCompletedTaskCount());
+    }
+
+    @Test
+    void workStealingShutdownNowReturnsLocalTasks() throws InterruptedException {
+        pool = (ThreadPoolExecutorMini) ExecutorsMini.newWorkStealingPool(1);
+        CountDownLatch started = new CountDownLatch(1);
+        pool.execute(() -> {
+            for (int i = 0; i < 10; i++) {
+                pool.execute(() -> {
+                });
+            }
+            started.countDown();
+            blockUntilReleased();
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(10, pool.shutdownNow().size());
+    }
+
+    @Test
+    void workStealingWakesIdleWorkersWithoutTouchingTheQueue() throws InterruptedException {
+        //记下放进workQueue的每一个元素
+        List<Runnable> offered = new CopyOnWriteArrayList<>();
+        ArrayBlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(1) {
+            @Override
+            public boolean offer(Runnable r) {
+                offered.add(r);
+                return super.offer(r);
+            }
+        };
+        pool = new ThreadPoolExecutorMini(2, 2, 0, TimeUnit.MILLISECONDS, queue,
+                Thread::new, new ThreadPoolExecutorMini.AbortPolicy(), true);
+        //两个线程都建好，然后都闲着
+        pool.execute(() -> {
+        });
+        pool.execute(() -> {
+        });
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pool.getCompletedTaskCount() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        //一个线程往自己的队列里放子任务再等它们做完，只能靠叫醒另一个线程来偷
+        int subtasks = 10;
+        CountDownLatch done = new CountDownLatch(subtasks);
+        boolean[] finished = new boolean[1];
+        CountDownLatch parent = new CountDownLatch(1);
+        Runnable task = () -> {
+            for (int i = 0; i < subtasks; i++) {
+                pool.execute(done::countDown);
+            }
+            try {
+                finished[0] = done.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+            }
+            parent.countDown();
+        };
+        pool.execute(task);
+        assertTrue(parent.await(10, TimeUnit.SECONDS));
+        assertTrue(finished[0]);
+        //workQueue里只出现过用户的任务，叫醒线程不占它的容量
+        for (Runnable r : offered) {
+            assertSame(task, r);
+        }
+        assertEquals(0, pool.getQueue().size());
+        assertEquals(1, pool.getQueue().remainingCapacity());
+        pool.execute(() -> {
+        });
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(2 + 1 + subtasks + 1, pool.getCompletedTaskCount());
+    }
+
+    @Test
+    void concurrentWorkerChurnKeepsCountsConsistent() throws InterruptedException {
+        //SynchronousQueue不排队，每个提交都可能新建一个非核心线程，空闲5毫秒就退出
+        pool = new ThreadPoolExecutorMini(1, 16, 5, TimeUnit.MILLISECONDS, new SynchronousQueue<>(),
+                Thread::new, new ThreadPoolExecutorMini.CallerRunsPolicy());
+        int submitters = 8;
+        int perSubmitter = 2000;
+        AtomicInteger done = new AtomicInteger();
+        CountDownLatch finished = new CountDownLatch(submitters);
+        for (int i = 0; i < submitters; i++) {
+            new Thread(() -> {
+                for (int j = 0; j < perSubmitter; j++) {
+                    pool.execute(done::incrementAndGet);
+                    if (j % 100 == 0) {
+                        //让非核心线程有机会超时退出
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                    }
+                }
+                finished.countDown();
+            }).start();
+        }
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((done.get() < submitters * perSubmitter || pool.getPoolSize() > 1) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(submitters * perSubmitter, done.get());
+        assertEquals(1, pool.getPoolSize());
+        assertTrue(pool.getLargestPoolSize() > 1);
+        assertTrue(pool.getLargestPoolSize() <= 16);
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, pool.getPoolSize());
+    }
+
+    void blockUntilReleased() {
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+        }
+    }
+}